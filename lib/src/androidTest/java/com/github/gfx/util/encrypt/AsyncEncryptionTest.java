@@ -0,0 +1,157 @@
+package com.github.gfx.util.encrypt;
+
+import android.os.Build;
+import android.test.AndroidTestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+@SuppressWarnings("Assert")
+public class AsyncEncryptionTest extends AndroidTestCase {
+    private boolean defaultCipherNotAvailable() {
+        return Build.VERSION.SDK_INT < Build.VERSION_CODES.ICE_CREAM_SANDWICH;
+    }
+
+    private Encryption encryption;
+
+    private AsyncEncryption asyncEncryption;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+
+        if (defaultCipherNotAvailable()) return;
+
+        encryption = new Encryption(Encryption.getDefaultCipher(), "0123456789abcdef");
+        asyncEncryption = new AsyncEncryption(encryption, 2, 100, 8);
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        if (defaultCipherNotAvailable()) return;
+
+        asyncEncryption.shutdown();
+
+        super.tearDown();
+    }
+
+    public void testEncryptDecryptAsync() throws Exception {
+        if (defaultCipherNotAvailable()) return;
+
+        List<Future<String>> futures = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            futures.add(asyncEncryption.encryptAsync("value" + i));
+        }
+
+        for (int i = 0; i < 100; i++) {
+            String encrypted = futures.get(i).get(10, TimeUnit.SECONDS);
+            assert encryption.decrypt(encrypted).equals("value" + i);
+            assert asyncEncryption.decryptAsync(encrypted).get(10, TimeUnit.SECONDS).equals("value" + i);
+        }
+    }
+
+    public void testTooManyPendingRequests() throws Exception {
+        if (defaultCipherNotAvailable()) return;
+
+        try {
+            for (int i = 0; i < 10000; i++) {
+                asyncEncryption.encryptAsync("value" + i);
+            }
+            fail();
+        } catch (RejectedExecutionException e) {
+            // OK
+        }
+    }
+
+    public void testShutdownRunsQueuedRequests() throws Exception {
+        if (defaultCipherNotAvailable()) return;
+
+        AsyncEncryption singleThreaded = new AsyncEncryption(encryption, 1, 256, 8);
+        List<Future<String>> futures = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            futures.add(singleThreaded.encryptAsync("value" + i));
+        }
+        singleThreaded.shutdown();
+
+        for (int i = 0; i < futures.size(); i++) {
+            assert encryption.decrypt(futures.get(i).get(10, TimeUnit.SECONDS)).equals("value" + i);
+        }
+        try {
+            singleThreaded.encryptAsync("value");
+            fail();
+        } catch (RejectedExecutionException e) {
+            // OK
+        }
+    }
+
+    public void testStreamDoesNotStarveRequests() throws Exception {
+        if (defaultCipherNotAvailable()) return;
+
+        AsyncEncryption singleThreaded = new AsyncEncryption(encryption, 1, 256, 8);
+        final CountDownLatch blocker = new CountDownLatch(1);
+        singleThreaded.encryptAll(Arrays.asList("a", "b").iterator(), new AsyncEncryption.Callback() {
+            @Override
+            public void onNext(int index, String result) {
+                try {
+                    blocker.await();
+                } catch (InterruptedException e) {
+                    throw new AssertionError(e);
+                }
+            }
+
+            @Override
+            public void onError(Throwable e) {
+            }
+
+            @Override
+            public void onComplete() {
+            }
+        });
+
+        try {
+            String encrypted = singleThreaded.encryptAsync("value").get(10, TimeUnit.SECONDS);
+            assert encryption.decrypt(encrypted).equals("value");
+        } finally {
+            blocker.countDown();
+            singleThreaded.shutdown();
+        }
+    }
+
+    public void testEncryptAll() throws Exception {
+        if (defaultCipherNotAvailable()) return;
+
+        List<String> plainTexts = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            plainTexts.add("value" + i);
+        }
+
+        final String[] results = new String[plainTexts.size()];
+        final CountDownLatch latch = new CountDownLatch(1);
+        asyncEncryption.encryptAll(plainTexts.iterator(), new AsyncEncryption.Callback() {
+            @Override
+            public void onNext(int index, String result) {
+                results[index] = result;
+            }
+
+            @Override
+            public void onError(Throwable e) {
+                fail(e.toString());
+            }
+
+            @Override
+            public void onComplete() {
+                latch.countDown();
+            }
+        });
+
+        assert latch.await(30, TimeUnit.SECONDS);
+        for (int i = 0; i < results.length; i++) {
+            assert encryption.decrypt(results[i]).equals("value" + i);
+        }
+    }
+}
@@ -0,0 +1,198 @@
+package com.github.gfx.util.encrypt;
+
+import org.apache.commons.io.FileUtils;
+
+import android.os.Build;
+import android.test.AndroidTestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Random;
+
+import javax.crypto.Cipher;
+
+@SuppressWarnings("Assert")
+public class ChunkedEncryptedFileTest extends AndroidTestCase {
+    private boolean defaultCipherNotAvailable() {
+        return Build.VERSION.SDK_INT < Build.VERSION_CODES.ICE_CREAM_SANDWICH;
+    }
+
+    private File file;
+
+    private Encryption encryption;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+
+        file = new File(getContext().getCacheDir(), "ChunkedEncryptedFileTest.bin");
+        if (defaultCipherNotAvailable()) return;
+
+        encryption = new Encryption(Encryption.getDefaultCipher(), "0123456789abcdef");
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        FileUtils.deleteQuietly(file);
+
+        super.tearDown();
+    }
+
+    public void testRandomAccess() throws Exception {
+        if (defaultCipherNotAvailable()) return;
+
+        byte[] data = new byte[100 * 1000];
+        new Random(42).nextBytes(data);
+
+        assert ChunkedEncryptedFile.write(encryption, new ByteArrayInputStream(data), file, 4096) == data.length;
+
+        ChunkedEncryptedFile.Reader reader = ChunkedEncryptedFile.open(encryption, file);
+        try {
+            assert reader.length() == data.length;
+
+            Random random = new Random(43);
+            for (int i = 0; i < 100; i++) {
+                int position = random.nextInt(data.length);
+                byte[] buffer = new byte[random.nextInt(10000)];
+                int n = reader.read(position, buffer, 0, buffer.length);
+
+                assert n == Math.min(buffer.length, data.length - position);
+                assert Arrays.equals(Arrays.copyOf(buffer, n), Arrays.copyOfRange(data, position, position + n));
+            }
+
+            assert reader.read(data.length, new byte[1], 0, 1) == -1;
+        } finally {
+            reader.close();
+        }
+    }
+
+    public void testFileEncrypted() throws Exception {
+        if (defaultCipherNotAvailable()) return;
+
+        byte[] data = "xyzzy xyzzy xyzzy".getBytes("UTF-8");
+        ChunkedEncryptedFile.write(encryption, new ByteArrayInputStream(data), file);
+
+        assert !FileUtils.readFileToString(file, "UTF-8").contains("xyzzy");
+    }
+
+    public void testEmpty() throws Exception {
+        if (defaultCipherNotAvailable()) return;
+
+        assert ChunkedEncryptedFile.write(encryption, new ByteArrayInputStream(new byte[0]), file) == 0;
+
+        ChunkedEncryptedFile.Reader reader = ChunkedEncryptedFile.open(encryption, file);
+        try {
+            assert reader.length() == 0;
+            assert reader.read(0, new byte[1], 0, 1) == -1;
+        } finally {
+            reader.close();
+        }
+    }
+
+    public void testBrokenIndex() throws Exception {
+        if (defaultCipherNotAvailable()) return;
+
+        byte[] data = new byte[10000];
+        ChunkedEncryptedFile.write(encryption, new ByteArrayInputStream(data), file, 1024);
+
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.seek(raf.length() - 12); // chunkCount in the footer
+            raf.writeInt(Integer.MAX_VALUE);
+        } finally {
+            raf.close();
+        }
+
+        try {
+            ChunkedEncryptedFile.open(encryption, file);
+            fail();
+        } catch (IOException e) {
+            // OK
+        }
+    }
+
+    public void testTamperedChunkWithGcm() throws Exception {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT) return;
+
+        Encryption gcm = new Encryption(Cipher.getInstance("AES/GCM/NoPadding"), "0123456789abcdef");
+        byte[] data = new byte[10000];
+        ChunkedEncryptedFile.write(gcm, new ByteArrayInputStream(data), file, 1024);
+
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.seek(100); // in the first chunk
+            int b = raf.read();
+            raf.seek(100);
+            raf.write(b ^ 1);
+        } finally {
+            raf.close();
+        }
+
+        ChunkedEncryptedFile.Reader reader = ChunkedEncryptedFile.open(gcm, file);
+        try {
+            assert reader.read(2000, new byte[10], 0, 10) == 10;
+            reader.read(0, new byte[10], 0, 10);
+            fail();
+        } catch (IOException e) {
+            // OK
+        } finally {
+            reader.close();
+        }
+    }
+
+    public void testChunkOfAnotherFileWithGcm() throws Exception {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT) return;
+
+        Encryption gcm = new Encryption(Cipher.getInstance("AES/GCM/NoPadding"), "0123456789abcdef");
+        byte[] data = new byte[10000];
+        File other = new File(getContext().getCacheDir(), "ChunkedEncryptedFileTest-other.bin");
+        try {
+            ChunkedEncryptedFile.write(gcm, new ByteArrayInputStream(data), file, 1024);
+            ChunkedEncryptedFile.write(gcm, new ByteArrayInputStream(data), other, 1024);
+
+            // the first chunks of both files have the same offset and length
+            byte[] bytes = FileUtils.readFileToByteArray(file);
+            byte[] otherBytes = FileUtils.readFileToByteArray(other);
+            System.arraycopy(otherBytes, 100, bytes, 100, 100);
+            FileUtils.writeByteArrayToFile(file, bytes);
+
+            ChunkedEncryptedFile.Reader reader = ChunkedEncryptedFile.open(gcm, file);
+            try {
+                reader.read(0, new byte[10], 0, 10);
+                fail();
+            } catch (IOException e) {
+                // OK
+            } finally {
+                reader.close();
+            }
+        } finally {
+            FileUtils.deleteQuietly(other);
+        }
+    }
+
+    public void testEditedLengthWithGcm() throws Exception {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT) return;
+
+        Encryption gcm = new Encryption(Cipher.getInstance("AES/GCM/NoPadding"), "0123456789abcdef");
+        byte[] data = new byte[10000];
+        ChunkedEncryptedFile.write(gcm, new ByteArrayInputStream(data), file, 1024);
+
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.seek(12); // plainLength in the header
+            raf.writeLong(5000);
+        } finally {
+            raf.close();
+        }
+
+        try {
+            ChunkedEncryptedFile.open(gcm, file);
+            fail();
+        } catch (IOException e) {
+            // OK
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package com.github.gfx.util.encrypt;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Build;
+import android.test.AndroidTestCase;
+
+import javax.crypto.Cipher;
+
+@SuppressWarnings("Assert")
+public class CipherSelectorTest extends AndroidTestCase {
+    private boolean gcmNotAvailable() {
+        return Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT;
+    }
+
+    private SharedPreferences prefs;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+
+        // not to leave a selection in the preferences of the app
+        prefs = getContext().getSharedPreferences("cipher_selector_test", Context.MODE_PRIVATE);
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        prefs.edit().clear().commit();
+        prefs = null;
+
+        super.tearDown();
+    }
+
+    public void testSelect() throws Exception {
+        if (gcmNotAvailable()) return;
+
+        assert CipherSelector.getSelectedCipher(prefs) == null;
+
+        Cipher cipher = CipherSelector.select(prefs);
+        assert CipherSelector.getSelectedCipher(prefs) != null;
+        assert CipherSelector.getSelectedCipher(prefs).getAlgorithm().equals(cipher.getAlgorithm());
+
+        Encryption encryption = new Encryption(cipher, "0123456789abcdef");
+        assert encryption.decrypt(encryption.encrypt("Hello, world!")).equals("Hello, world!");
+    }
+
+    @TargetApi(Build.VERSION_CODES.KITKAT)
+    public void testOldValuesReadable() throws Exception {
+        if (gcmNotAvailable()) return;
+
+        Encryption cbc = new Encryption(Encryption.getDefaultCipher(), "0123456789abcdef");
+        Encryption gcm = new Encryption(Cipher.getInstance("AES/GCM/NoPadding"), "0123456789abcdef");
+
+        assert gcm.decrypt(cbc.encrypt("Hello, world!")).equals("Hello, world!");
+        assert cbc.decrypt(gcm.encrypt("Hello, world!")).equals("Hello, world!");
+    }
+}
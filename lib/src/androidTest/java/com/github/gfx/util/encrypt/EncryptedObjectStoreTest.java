@@ -0,0 +1,162 @@
+package com.github.gfx.util.encrypt;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Build;
+import android.test.AndroidTestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.List;
+
+@SuppressWarnings("Assert")
+public class EncryptedObjectStoreTest extends AndroidTestCase {
+    private boolean defaultCipherNotAvailable() {
+        return Build.VERSION.SDK_INT < Build.VERSION_CODES.ICE_CREAM_SANDWICH;
+    }
+
+    private EncryptedSharedPreferences prefs;
+
+    private int deserializeCount;
+
+    private final EncryptedObjectStore.Serializer<List<String>> serializer
+            = new EncryptedObjectStore.Serializer<List<String>>() {
+        @Override
+        public String serialize(List<String> object) {
+            StringBuilder sb = new StringBuilder();
+            for (String s : object) {
+                if (sb.length() > 0) {
+                    sb.append(',');
+                }
+                sb.append(s);
+            }
+            return sb.toString();
+        }
+
+        @Override
+        public List<String> deserialize(String serialized) {
+            deserializeCount++;
+            return Arrays.asList(serialized.split(","));
+        }
+    };
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+
+        if (defaultCipherNotAvailable()) return;
+
+        SharedPreferences base = getContext().getSharedPreferences("object_store", Context.MODE_PRIVATE);
+        prefs = new EncryptedSharedPreferences(Encryption.getDefaultCipher(), base, "0123456789abcdef");
+        deserializeCount = 0;
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        if (defaultCipherNotAvailable()) return;
+
+        prefs.edit().clear().commit();
+        prefs = null;
+
+        super.tearDown();
+    }
+
+    public void testCachedRead() throws Exception {
+        if (defaultCipherNotAvailable()) return;
+
+        EncryptedObjectStore<List<String>> store = new EncryptedObjectStore<>(prefs, serializer, 60 * 1000, 10);
+        assert prefs.edit().putString("foo", "a,b,c").commit();
+
+        List<String> list1 = store.get("foo");
+        List<String> list2 = store.get("foo");
+
+        assert list1 != null;
+        assert list1.equals(Arrays.asList("a", "b", "c"));
+        assert list1 == list2;
+        assert deserializeCount == 1;
+        assert store.get("bar") == null;
+
+        store.close();
+    }
+
+    public void testInvalidatedByCommit() throws Exception {
+        if (defaultCipherNotAvailable()) return;
+
+        EncryptedObjectStore<List<String>> store = new EncryptedObjectStore<>(prefs, serializer, 60 * 1000, 10);
+        store.put("foo", Arrays.asList("a", "b"));
+        assert store.get("foo").equals(Arrays.asList("a", "b"));
+        assert deserializeCount == 0;
+
+        assert prefs.edit().putString("foo", "x,y").commit();
+        assert store.get("foo").equals(Arrays.asList("x", "y"));
+
+        assert prefs.edit().clear().commit();
+        assert store.get("foo") == null;
+
+        store.close();
+    }
+
+    public void testReusedEditor() throws Exception {
+        if (defaultCipherNotAvailable()) return;
+
+        // edited before the store observes the preferences
+        SharedPreferences.Editor editor = prefs.edit();
+        assert editor.clear().commit();
+        assert prefs.edit().putString("foo", "a,b").commit();
+
+        EncryptedObjectStore<List<String>> store = new EncryptedObjectStore<>(prefs, serializer, 60 * 1000, 10);
+        assert store.get("foo").equals(Arrays.asList("a", "b"));
+
+        // must not be seen as a clear again
+        assert editor.putString("bar", "x").commit();
+        assert store.get("foo").equals(Arrays.asList("a", "b"));
+        assert deserializeCount == 1;
+
+        store.close();
+    }
+
+    public void testInvalidatedByImportSnapshot() throws Exception {
+        if (defaultCipherNotAvailable()) return;
+
+        EncryptedObjectStore<List<String>> store = new EncryptedObjectStore<>(prefs, serializer, 60 * 1000, 10);
+        assert prefs.edit().putString("foo", "a,b").commit();
+        ByteArrayOutputStream snapshot = new ByteArrayOutputStream();
+        prefs.exportSnapshot(snapshot);
+
+        store.put("foo", Arrays.asList("x", "y"));
+        assert store.get("foo").equals(Arrays.asList("x", "y"));
+
+        prefs.importSnapshot(new ByteArrayInputStream(snapshot.toByteArray()));
+        assert store.get("foo").equals(Arrays.asList("a", "b"));
+
+        store.close();
+    }
+
+    public void testExpiration() throws Exception {
+        if (defaultCipherNotAvailable()) return;
+
+        EncryptedObjectStore<List<String>> store = new EncryptedObjectStore<>(prefs, serializer, 0, 10);
+        assert prefs.edit().putString("foo", "a").commit();
+
+        store.get("foo");
+        store.get("foo");
+        assert deserializeCount == 2;
+
+        store.close();
+    }
+
+    public void testMaxSize() throws Exception {
+        if (defaultCipherNotAvailable()) return;
+
+        EncryptedObjectStore<List<String>> store = new EncryptedObjectStore<>(prefs, serializer, 60 * 1000, 1);
+        assert prefs.edit().putString("foo", "a").putString("bar", "b").commit();
+
+        store.get("foo");
+        store.get("bar");
+        store.get("foo");
+        assert deserializeCount == 3;
+
+        store.close();
+    }
+}
@@ -10,14 +10,21 @@ import android.preference.PreferenceManager;
 import android.test.AndroidTestCase;
 import android.util.Log;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 
+import javax.crypto.Cipher;
+
 @SuppressLint("Assert")
 public class EncryptedSharedPreferencesTest extends AndroidTestCase {
     private boolean defaultCipherNotAvailable() {
@@ -170,6 +177,110 @@ public class EncryptedSharedPreferencesTest extends AndroidTestCase {
         // TODO: other vale types?
     }
 
+    public void testPutAll() throws Exception {
+        if (defaultCipherNotAvailable()) return;
+
+        Map<String, Object> values = new HashMap<>();
+        for (int i = 0; i < 1000; i++) {
+            values.put("key" + i, "value" + i);
+        }
+        values.put("int", 42);
+        values.put("boolean", true);
+
+        assert ((EncryptedSharedPreferences) prefs).edit()
+                .putAll(values)
+                .commit();
+
+        assert prefs.getAll().size() == 1002;
+        assert prefs.getString("key0", "*").equals("value0");
+        assert prefs.getString("key999", "*").equals("value999");
+        assert prefs.getInt("int", 0) == 42;
+        assert prefs.getBoolean("boolean", false);
+    }
+
+    public void testSnapshot() throws Exception {
+        if (defaultCipherNotAvailable()) return;
+
+        EncryptedSharedPreferences encryptedPrefs = (EncryptedSharedPreferences) prefs;
+        assert encryptedPrefs.edit()
+                .putString("foo", "aaa")
+                .putString("bar", "bbb")
+                .commit();
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assert encryptedPrefs.exportSnapshot(out) == 2;
+        assert !new String(out.toByteArray(), "UTF-8").contains("aaa");
+
+        assert prefs.edit().clear().putString("baz", "ccc").commit();
+
+        byte[] snapshot = out.toByteArray();
+        out.write("trailer".getBytes("UTF-8")); // data stored after the snapshot
+        ByteArrayInputStream in = new ByteArrayInputStream(out.toByteArray());
+        assert encryptedPrefs.importSnapshot(in) == 2;
+        assert in.available() == "trailer".length();
+        assert prefs.getAll().size() == 2;
+        assert prefs.getString("foo", "*").equals("aaa");
+        assert prefs.getString("bar", "*").equals("bbb");
+
+        SharedPreferences base = getContext().getSharedPreferences("prefs", Context.MODE_PRIVATE);
+        EncryptedSharedPreferences other = new EncryptedSharedPreferences(Encryption.getDefaultCipher(), base, "012345678912345a");
+        try {
+            other.importSnapshot(new ByteArrayInputStream(snapshot));
+            fail();
+        } catch (IOException e) {
+            // OK
+        }
+    }
+
+    public void testFindKeysByValue() throws Exception {
+        if (defaultCipherNotAvailable()) return;
+
+        EncryptedSharedPreferences encryptedPrefs = (EncryptedSharedPreferences) prefs;
+        encryptedPrefs.enableDeterministicEncryption("owner", "reviewer");
+
+        assert encryptedPrefs.edit()
+                .putString("owner", "alice")
+                .putString("reviewer", "bob")
+                .putString("other", "alice")
+                .commit();
+
+        assert encryptedPrefs.getString("owner", "*").equals("alice");
+        assert encryptedPrefs.findKeysByValue("alice").size() == 1;
+        assert encryptedPrefs.findKeysByValue("alice").contains("owner");
+        assert encryptedPrefs.findKeysByValue("carol").isEmpty();
+
+        assert encryptedPrefs.edit().putString("reviewer", "alice").commit();
+        assert encryptedPrefs.findKeysByValue("alice").size() == 2;
+        assert encryptedPrefs.findKeysByValue("bob").isEmpty();
+
+        assert encryptedPrefs.edit().remove("owner").commit();
+        assert encryptedPrefs.findKeysByValue("alice").size() == 1;
+        assert encryptedPrefs.findKeysByValue("alice").contains("reviewer");
+    }
+
+    public void testFindKeysByValueWithGcm() throws Exception {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT) return;
+
+        SharedPreferences base = getContext().getSharedPreferences("find_keys_gcm", Context.MODE_PRIVATE);
+        EncryptedSharedPreferences encryptedPrefs = new EncryptedSharedPreferences(base,
+                new Encryption(Cipher.getInstance("AES/GCM/NoPadding"), "0123456789abcdef"));
+        encryptedPrefs.enableDeterministicEncryption("owner", "reviewer");
+
+        try {
+            assert encryptedPrefs.edit()
+                    .putString("owner", "alice")
+                    .putString("reviewer", "alice")
+                    .commit();
+            assert encryptedPrefs.getString("owner", "*").equals("alice");
+            assert encryptedPrefs.findKeysByValue("alice").size() == 2;
+
+            assert encryptedPrefs.edit().putString("owner", "alice").commit();
+            assert encryptedPrefs.findKeysByValue("alice").size() == 2;
+        } finally {
+            base.edit().clear().commit();
+        }
+    }
+
     public void testCommit() throws Exception {
         if (defaultCipherNotAvailable()) return;
 
@@ -270,6 +381,40 @@ public class EncryptedSharedPreferencesTest extends AndroidTestCase {
         assert events.contains(key);
     }
 
+    public void testRegisterOnSharedPreferencesBatchChangeListener() throws Exception {
+        if (defaultCipherNotAvailable()) return;
+
+        final CountDownLatch latch = new CountDownLatch(1);
+        final List<Set<String>> batches = new ArrayList<>();
+
+        EncryptedSharedPreferences.OnSharedPreferencesBatchChangeListener listener
+                = new EncryptedSharedPreferences.OnSharedPreferencesBatchChangeListener() {
+            @Override
+            public void onSharedPreferencesChanged(SharedPreferences sharedPreferences,
+                    Set<String> keys) {
+                batches.add(keys);
+                latch.countDown();
+            }
+        };
+        ((EncryptedSharedPreferences) prefs).registerOnSharedPreferencesBatchChangeListener(
+                listener, Executors.newSingleThreadExecutor());
+
+        assert prefs.edit()
+                .putString("foo", "1")
+                .putString("bar", "2")
+                .putString("baz", "3")
+                .commit();
+        assert latch.await(10, TimeUnit.SECONDS);
+
+        assert batches.size() == 1;
+        assert batches.get(0).size() == 3;
+        assert batches.get(0).contains("foo");
+        assert batches.get(0).contains("bar");
+        assert batches.get(0).contains("baz");
+
+        ((EncryptedSharedPreferences) prefs).unregisterOnSharedPreferencesBatchChangeListener(listener);
+    }
+
     public void testUnregisterOnSharedPreferenceChangeListener() throws Exception {
         if (defaultCipherNotAvailable()) return;
 
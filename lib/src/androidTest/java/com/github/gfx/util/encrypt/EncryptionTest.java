@@ -9,7 +9,12 @@ import android.content.Context;
 import android.os.Build;
 import android.test.AndroidTestCase;
 import android.test.mock.MockContext;
+
+import java.security.SecureRandom;
 import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.Cipher;
 
 @SuppressWarnings("Assert")
 public class EncryptionTest extends AndroidTestCase {
@@ -123,6 +128,190 @@ public class EncryptionTest extends AndroidTestCase {
         assert decrypted2nd.equals(decrypted);
     }
 
+    public void testDefaultKeyProvider() throws Exception {
+        if (defaultCipherNotAvailable()) return;
+
+        DefaultKeyProvider keyProvider = DefaultKeyProvider.getInstance(getContext());
+        assert keyProvider == DefaultKeyProvider.getInstance(getContext());
+        assert Arrays.equals(keyProvider.prefetch().get(10, TimeUnit.SECONDS).getEncoded(),
+                Encryption.getDefaultPrivateKey(getContext()));
+
+        String encrypted = new Encryption(Encryption.getDefaultCipher(), getContext()).encrypt("Hello, world!");
+        Encryption encryption = new Encryption(Encryption.getDefaultCipher(), keyProvider);
+        assert encryption.decrypt(encrypted).equals("Hello, world!");
+    }
+
+    public void testDefaultKeyProviderWithoutApplicationContext() throws Exception {
+        if (defaultCipherNotAvailable()) return;
+
+        final Context context = getContext();
+        Context mockContext = new MockContext() {
+            @Override
+            public String getPackageName() {
+                return "a";
+            }
+
+            @Override
+            public ContentResolver getContentResolver() {
+                return context.getContentResolver();
+            }
+        };
+
+        DefaultKeyProvider keyProvider = DefaultKeyProvider.getInstance(mockContext);
+        assert keyProvider != DefaultKeyProvider.getInstance(context);
+        assert Arrays.equals(keyProvider.getKey().getEncoded(), Encryption.getDefaultPrivateKey(mockContext));
+
+        Encryption encryption = new Encryption(Encryption.getDefaultCipher(), mockContext);
+        assert encryption.decrypt(encryption.encrypt("Hello, world!")).equals("Hello, world!");
+    }
+
+    public void testBufferedNonceSource() throws Exception {
+        if (defaultCipherNotAvailable()) return;
+
+        Encryption encryption = new Encryption(Encryption.getDefaultCipher(), getContext());
+        encryption.setNonceSource(new BufferedNonceSource(new SecureRandom(), 40)); // not a multiple of 16
+
+        String s = "Hello, world!";
+        String encrypted1 = encryption.encrypt(s);
+        String encrypted2 = encryption.encrypt(s);
+        String encrypted3 = encryption.encrypt(s);
+
+        assert !encrypted1.equals(encrypted2);
+        assert !encrypted2.equals(encrypted3);
+        assert encryption.decrypt(encrypted1).equals(s);
+        assert encryption.decrypt(encrypted2).equals(s);
+        assert encryption.decrypt(encrypted3).equals(s);
+    }
+
+    public void testCounterNonceSource() throws Exception {
+        CounterNonceSource nonceSource = new CounterNonceSource(8);
+
+        byte[] n1 = new byte[16];
+        byte[] n2 = new byte[16];
+        nonceSource.nextNonce(n1, 0, n1.length);
+        nonceSource.nextNonce(n2, 0, n2.length);
+
+        assert !Arrays.equals(n1, n2);
+        assert Arrays.equals(Arrays.copyOf(n1, 8), Arrays.copyOf(n2, 8));
+
+        try {
+            nonceSource.nextNonce(new byte[12], 0, 12);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // OK
+        }
+    }
+
+    public void testValueCodec() throws Exception {
+        if (defaultCipherNotAvailable()) return;
+
+        String privateKey = RandomStringUtils.randomAscii(16);
+        Encryption plain = new Encryption(Encryption.getDefaultCipher(), privateKey);
+        Encryption deflate = new Encryption(Encryption.getDefaultCipher(), privateKey);
+        deflate.setValueCodec(new DeflateValueCodec(DeflateValueCodec.DEFAULT_THRESHOLD, true));
+
+        String s = StringUtils.repeat("{\"foo\":\"bar\"},", 1000);
+        String encrypted = deflate.encrypt(s);
+
+        assert encrypted.length() < plain.encrypt(s).length();
+        assert deflate.decrypt(encrypted).equals(s);
+
+        // values without the codec are still readable
+        assert deflate.decrypt(plain.encrypt(s)).equals(s);
+
+        try {
+            plain.decrypt(encrypted);
+            fail();
+        } catch (Encryption.UnexpectedDecryptionStateException e) {
+            // OK
+        }
+    }
+
+    public void testValueCodecMaxDecodedLength() throws Exception {
+        if (defaultCipherNotAvailable()) return;
+
+        String privateKey = RandomStringUtils.randomAscii(16);
+        Encryption unlimited = new Encryption(Encryption.getDefaultCipher(), privateKey);
+        unlimited.setValueCodec(new DeflateValueCodec());
+        Encryption limited = new Encryption(Encryption.getDefaultCipher(), privateKey);
+        limited.setValueCodec(new DeflateValueCodec(DeflateValueCodec.DEFAULT_THRESHOLD, false, 1000));
+
+        String small = StringUtils.repeat("x", 1000);
+        assert limited.decrypt(unlimited.encrypt(small)).equals(small);
+
+        try {
+            limited.decrypt(unlimited.encrypt(small + "x"));
+            fail();
+        } catch (Encryption.UnexpectedDecryptionStateException e) {
+            // OK
+        }
+    }
+
+    public void testSecretBuffer() throws Exception {
+        if (defaultCipherNotAvailable()) return;
+
+        Encryption encryption = new Encryption(Encryption.getDefaultCipher(), RandomStringUtils.randomAscii(16));
+        String s = "日本語の混じった文字列。 Hello, world!";
+
+        SecretBuffer plainText = SecretBuffer.allocate(8);
+        plainText.ensureCapacity(s.getBytes("UTF-8").length);
+        plainText.buffer().put(s.getBytes("UTF-8"));
+        plainText.buffer().flip();
+        String encrypted = encryption.encrypt(plainText.buffer());
+        plainText.wipe();
+
+        assert encryption.decrypt(encrypted).equals(s);
+
+        SecretBuffer decrypted = SecretBuffer.allocate(8);
+        encryption.decrypt(encrypted, decrypted);
+        byte[] bytes = new byte[decrypted.buffer().remaining()];
+        decrypted.buffer().get(bytes);
+        decrypted.wipe();
+
+        assert new String(bytes, "UTF-8").equals(s);
+        assert decrypted.buffer().get(0) == 0;
+    }
+
+    public void testCharArray() throws Exception {
+        if (defaultCipherNotAvailable()) return;
+
+        Encryption encryption = new Encryption(Encryption.getDefaultCipher(), RandomStringUtils.randomAscii(16));
+        char[] password = "p@ssw0rd!".toCharArray();
+
+        String encrypted = encryption.encrypt(password);
+
+        assert encryption.decrypt(encrypted).equals("p@ssw0rd!");
+        assert Arrays.equals(encryption.decryptToChars(encrypted), password);
+    }
+
+    public void testEncryptDeterministically() throws Exception {
+        if (defaultCipherNotAvailable()) return;
+
+        Encryption encryption = new Encryption(Encryption.getDefaultCipher(), RandomStringUtils.randomAscii(16));
+
+        String s = "Hello, world!";
+        String encrypted = encryption.encryptDeterministically(s);
+
+        assert encrypted.equals(encryption.encryptDeterministically(s));
+        assert !encrypted.equals(encryption.encryptDeterministically(s + "!"));
+        assert encryption.decrypt(encrypted).equals(s);
+    }
+
+    public void testEncryptDeterministicallyWithGcm() throws Exception {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT) return;
+
+        Encryption encryption = new Encryption(Cipher.getInstance("AES/GCM/NoPadding"),
+                RandomStringUtils.randomAscii(16));
+
+        String s = "Hello, world!";
+        String encrypted = encryption.encryptDeterministically(s);
+
+        assert encrypted.equals(encryption.encryptDeterministically(s));
+        assert !encrypted.startsWith("$g$"); // never GCM with a synthetic IV
+        assert encryption.decrypt(encrypted).equals(s);
+        assert encryption.decrypt(encryption.encrypt(s)).equals(s);
+    }
+
     public void testBadEncryption() throws Exception {
         if (defaultCipherNotAvailable()) return;
 
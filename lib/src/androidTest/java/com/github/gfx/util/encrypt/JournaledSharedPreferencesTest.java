@@ -0,0 +1,149 @@
+package com.github.gfx.util.encrypt;
+
+import android.content.SharedPreferences;
+import android.os.Build;
+import android.test.AndroidTestCase;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+
+@SuppressWarnings("Assert")
+public class JournaledSharedPreferencesTest extends AndroidTestCase {
+    private boolean defaultCipherNotAvailable() {
+        return Build.VERSION.SDK_INT < Build.VERSION_CODES.ICE_CREAM_SANDWICH;
+    }
+
+    private SharedPreferences base;
+
+    private File journalFile;
+
+    private JournaledSharedPreferences journaled;
+
+    private EncryptedSharedPreferences prefs;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+
+        if (defaultCipherNotAvailable()) return;
+
+        base = getContext().getSharedPreferences("journaled", 0);
+        journalFile = new File(getContext().getFilesDir(), "journaled.journal");
+        journaled = new JournaledSharedPreferences(getContext(), "journaled");
+        prefs = new EncryptedSharedPreferences(journaled,
+                new Encryption(Encryption.getDefaultCipher(), "0123456789abcdef"));
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        if (defaultCipherNotAvailable()) return;
+
+        prefs.edit().clear().commit();
+        journaled.checkpoint();
+        journaled.close();
+        journaled = null;
+        prefs = null;
+
+        super.tearDown();
+    }
+
+    private void reopen() throws Exception {
+        journaled.close();
+        journaled = new JournaledSharedPreferences(getContext(), "journaled");
+        prefs = new EncryptedSharedPreferences(journaled,
+                new Encryption(Encryption.getDefaultCipher(), "0123456789abcdef"));
+    }
+
+    public void testPutAndGet() throws Exception {
+        if (defaultCipherNotAvailable()) return;
+
+        assert prefs.edit()
+                .putString("foo", "aaa")
+                .putInt("bar", 42)
+                .commit();
+
+        assert prefs.getString("foo", "*").equals("aaa");
+        assert prefs.getInt("bar", 0) == 42;
+
+        Map<String, ?> map = prefs.getAll();
+        assert map.size() == 2;
+        assert map.get("foo").equals("aaa");
+
+        prefs.edit().remove("foo").apply();
+        assert prefs.getString("foo", "*").equals("*");
+    }
+
+    public void testCommitIsJournaled() throws Exception {
+        if (defaultCipherNotAvailable()) return;
+
+        assert prefs.edit().putString("foo", "aaa").commit();
+        assert base.getAll().isEmpty();
+        assert journalFile.length() > 0;
+
+        reopen();
+        assert prefs.getString("foo", "*").equals("aaa");
+    }
+
+    public void testTypedValues() throws Exception {
+        if (defaultCipherNotAvailable()) return;
+
+        assert journaled.edit()
+                .putInt("int", 42)
+                .putLong("long", Long.MAX_VALUE)
+                .putFloat("float", 1.5f)
+                .putBoolean("boolean", true)
+                .putStringSet("set", new HashSet<>(Arrays.asList("a", "b")))
+                .commit();
+
+        reopen();
+        assert journaled.getInt("int", 0) == 42;
+        assert journaled.getLong("long", 0) == Long.MAX_VALUE;
+        assert journaled.getFloat("float", 0) == 1.5f;
+        assert journaled.getBoolean("boolean", false);
+        assert journaled.getStringSet("set", null).equals(new HashSet<>(Arrays.asList("a", "b")));
+
+        assert journaled.checkpoint();
+        assert base.getInt("int", 0) == 42;
+        assert base.getStringSet("set", null).size() == 2;
+
+        assert journaled.edit().remove("int").commit();
+        assert !journaled.contains("int");
+        assert journaled.getInt("int", -1) == -1;
+    }
+
+    public void testCheckpoint() throws Exception {
+        if (defaultCipherNotAvailable()) return;
+
+        assert prefs.edit().putString("foo", "aaa").commit();
+        assert prefs.edit().putString("bar", "bbb").commit();
+        assert journaled.checkpoint();
+
+        assert base.getAll().size() == 2;
+        assert !base.getAll().containsValue("aaa");
+        assert journalFile.length() == 0;
+        assert prefs.getString("foo", "*").equals("aaa");
+    }
+
+    public void testTornRecordIsDiscarded() throws Exception {
+        if (defaultCipherNotAvailable()) return;
+
+        assert prefs.edit().putString("foo", "aaa").commit();
+        long length = journalFile.length();
+
+        journaled.close();
+        FileOutputStream out = new FileOutputStream(journalFile, true);
+        out.write(new byte[]{0, 0, 0, 100, 1, 2, 3});
+        out.close();
+
+        reopen();
+        assert prefs.getString("foo", "*").equals("aaa");
+        assert journalFile.length() == length;
+
+        assert prefs.edit().putString("bar", "bbb").commit();
+        reopen();
+        assert prefs.getString("bar", "*").equals("bbb");
+    }
+}
@@ -0,0 +1,137 @@
+package com.github.gfx.util.encrypt;
+
+import android.os.Build;
+import android.test.AndroidTestCase;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Map;
+
+@SuppressWarnings("Assert")
+public class MultiProcessEncryptedSharedPreferencesTest extends AndroidTestCase {
+    private boolean defaultCipherNotAvailable() {
+        return Build.VERSION.SDK_INT < Build.VERSION_CODES.ICE_CREAM_SANDWICH;
+    }
+
+    private MultiProcessEncryptedSharedPreferences prefs;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+
+        if (defaultCipherNotAvailable()) return;
+
+        prefs = new MultiProcessEncryptedSharedPreferences(getContext(), "multi_process",
+                new Encryption(Encryption.getDefaultCipher(), "0123456789abcdef"));
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        if (defaultCipherNotAvailable()) return;
+
+        prefs.edit().clear().commit();
+        prefs.close();
+        prefs = null;
+
+        super.tearDown();
+    }
+
+    public void testPutAndGet() throws Exception {
+        if (defaultCipherNotAvailable()) return;
+
+        assert prefs.edit()
+                .putString("foo", "aaa")
+                .putInt("bar", 42)
+                .commit();
+
+        assert prefs.getString("foo", "*").equals("aaa");
+        assert prefs.getInt("bar", 0) == 42;
+        assert prefs.contains("foo");
+        assert !prefs.contains("baz");
+
+        Map<String, ?> map = prefs.getAll();
+        assert map.size() == 2;
+        assert map.get("foo").equals("aaa");
+    }
+
+    public void testRemoveAndClear() throws Exception {
+        if (defaultCipherNotAvailable()) return;
+
+        assert prefs.edit()
+                .putString("foo", "aaa")
+                .putString("bar", "bbb")
+                .commit();
+        assert prefs.getString("foo", "*").equals("aaa");
+
+        prefs.edit().remove("foo").apply();
+        assert prefs.getString("foo", "*").equals("*");
+        assert prefs.getString("bar", "*").equals("bbb");
+
+        assert prefs.edit().clear().commit();
+        assert prefs.getString("bar", "*").equals("*");
+        assert prefs.getAll().isEmpty();
+    }
+
+    public void testChangesByAnotherInstance() throws Exception {
+        if (defaultCipherNotAvailable()) return;
+
+        // stands for another process: it shares nothing with prefs but the files, which it opens and
+        // reads by itself
+        MultiProcessEncryptedSharedPreferences other = new MultiProcessEncryptedSharedPreferences(
+                getContext(), "multi_process",
+                new Encryption(Encryption.getDefaultCipher(), "0123456789abcdef"));
+        try {
+            assert prefs.edit()
+                    .putString("foo", "aaa")
+                    .putString("bar", "bbb")
+                    .commit();
+            assert prefs.getString("foo", "*").equals("aaa"); // cached
+
+            assert other.getString("foo", "*").equals("aaa");
+            assert other.edit().putString("foo", "xxx").commit();
+            assert prefs.getString("foo", "*").equals("xxx");
+            assert prefs.getString("bar", "*").equals("bbb");
+
+            assert other.edit().remove("bar").commit();
+            assert prefs.getString("bar", "*").equals("*");
+
+            // two clears in a row compact the log to the same size
+            assert prefs.getString("foo", "*").equals("xxx");
+            assert other.edit().clear().commit();
+            assert other.edit().clear().putString("foo", "yyy").commit();
+            assert prefs.getString("foo", "*").equals("yyy");
+            assert prefs.getAll().size() == 1;
+
+            // prefs falls behind while other compacts the log into the snapshot many times
+            StringBuilder large = new StringBuilder();
+            for (int i = 0; i < 2000; i++) {
+                large.append('z');
+            }
+            for (int i = 0; i < 100; i++) {
+                assert other.edit().putString("large" + (i % 7), large.toString() + i).commit();
+            }
+            assert prefs.getString("large0", "*").equals(large.toString() + 98);
+            assert prefs.getString("foo", "*").equals("yyy");
+            assert prefs.getAll().size() == 8;
+        } finally {
+            other.close();
+        }
+    }
+
+    public void testStoredEncrypted() throws Exception {
+        if (defaultCipherNotAvailable()) return;
+
+        assert prefs.edit().putString("foo", "xyzzy").commit();
+
+        File log = new File(getContext().getFilesDir(), "multi_process.changes");
+        byte[] bytes = new byte[(int) log.length()];
+        RandomAccessFile raf = new RandomAccessFile(log, "r");
+        try {
+            raf.readFully(bytes);
+        } finally {
+            raf.close();
+        }
+        assert new String(bytes, "UTF-8").contains("foo");
+        assert !new String(bytes, "UTF-8").contains("xyzzy");
+    }
+}
@@ -0,0 +1,89 @@
+package com.github.gfx.util.encrypt;
+
+import android.os.Build;
+import android.test.AndroidTestCase;
+
+import java.util.HashMap;
+import java.util.Map;
+
+@SuppressWarnings("Assert")
+public class ShardedEncryptedSharedPreferencesTest extends AndroidTestCase {
+    private boolean defaultCipherNotAvailable() {
+        return Build.VERSION.SDK_INT < Build.VERSION_CODES.ICE_CREAM_SANDWICH;
+    }
+
+    private ShardedEncryptedSharedPreferences prefs;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+
+        if (defaultCipherNotAvailable()) return;
+
+        prefs = new ShardedEncryptedSharedPreferences(getContext(), "sharded", 4,
+                new Encryption(Encryption.getDefaultCipher(), "0123456789abcdef"));
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        if (defaultCipherNotAvailable()) return;
+
+        prefs.edit().clear().commit();
+        prefs = null;
+
+        super.tearDown();
+    }
+
+    public void testPutAndGet() throws Exception {
+        if (defaultCipherNotAvailable()) return;
+
+        Map<String, Object> values = new HashMap<>();
+        for (int i = 0; i < 100; i++) {
+            values.put("key" + i, "value" + i);
+        }
+        assert prefs.edit()
+                .putAll(values)
+                .putInt("bar", 42)
+                .commit();
+
+        assert prefs.getString("key0", "*").equals("value0");
+        assert prefs.getString("key99", "*").equals("value99");
+        assert prefs.getInt("bar", 0) == 42;
+        assert prefs.contains("key50");
+        assert !prefs.contains("baz");
+
+        Map<String, ?> map = prefs.getAll();
+        assert map.size() == 101;
+        assert map.get("key42").equals("value42");
+
+        assert prefs.edit().remove("key0").commit();
+        assert prefs.getString("key0", "*").equals("*");
+        assert prefs.getAll().size() == 100;
+    }
+
+    public void testCommitTouchesOnlyItsShard() throws Exception {
+        if (defaultCipherNotAvailable()) return;
+
+        assert prefs.edit().putString("foo", "aaa").commit();
+
+        int index = prefs.getShardIndex("foo");
+        for (int i = 0; i < prefs.getShardCount(); i++) {
+            int size = getContext().getSharedPreferences("sharded_shard" + i, 0).getAll().size();
+            assert size == (i == index ? 1 : 0);
+        }
+    }
+
+    public void testClear() throws Exception {
+        if (defaultCipherNotAvailable()) return;
+
+        Map<String, Object> values = new HashMap<>();
+        for (int i = 0; i < 20; i++) {
+            values.put("key" + i, i);
+        }
+        assert prefs.edit().putAll(values).commit();
+        assert prefs.getAll().size() == 20;
+
+        assert prefs.edit().clear().commit();
+        assert prefs.getAll().isEmpty();
+    }
+}
@@ -0,0 +1,311 @@
+package com.github.gfx.util.encrypt;
+
+import android.support.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An asynchronous facade of {@link com.github.gfx.util.encrypt.Encryption}, which runs on its own
+ * bounded pool of background threads with one {@link Encryption#copy()} per thread.
+ * <p>
+ * Requests are queued and run in batches, so that a burst of small requests does not cost a task
+ * submission each. The number of queued requests is limited: {@link #encryptAsync(String)} and
+ * {@link #decryptAsync(String)} never block but throw
+ * {@link java.util.concurrent.RejectedExecutionException} when the queue is full, while
+ * {@link #encryptAll(java.util.Iterator, Callback)} and {@link #decryptAll(java.util.Iterator, Callback)}
+ * pull values from their source only as fast as the workers consume them. Streams run on a separate
+ * pool of the same size, so a long stream never starves single requests.
+ * <p>
+ * This class is thread-safe.
+ */
+public class AsyncEncryption {
+
+    public static final int DEFAULT_MAX_PENDING = 256;
+
+    public static final int DEFAULT_BATCH_SIZE = 16;
+
+    /**
+     * Receives the results of {@link #encryptAll(java.util.Iterator, Callback)} or
+     * {@link #decryptAll(java.util.Iterator, Callback)}, in worker threads.
+     */
+    public interface Callback {
+
+        /**
+         * Called for each value, not necessarily in the order of the source.
+         *
+         * @param index - the index of the value in the source
+         */
+        void onNext(int index, @NonNull String result);
+
+        /**
+         * Called once if a value fails; no more values are pulled from the source.
+         */
+        void onError(@NonNull Throwable e);
+
+        /**
+         * Called once after all the values are processed without errors.
+         */
+        void onComplete();
+    }
+
+    private final ThreadPoolExecutor executor;
+
+    private final ThreadPoolExecutor streamExecutor;
+
+    private volatile boolean shutdown;
+
+    private final int threads;
+
+    private final int maxPending;
+
+    private final int batchSize;
+
+    private final ThreadLocal<Encryption> workers;
+
+    private final Queue<FutureTask<String>> queue = new ConcurrentLinkedQueue<>();
+
+    private final AtomicInteger pendingCount = new AtomicInteger();
+
+    private final AtomicInteger activeDrainers = new AtomicInteger();
+
+    private final Runnable drainer = new Runnable() {
+        @Override
+        public void run() {
+            for (int i = 0; i < batchSize; i++) {
+                FutureTask<String> task = queue.poll();
+                if (task == null) {
+                    break;
+                }
+                pendingCount.decrementAndGet();
+                task.run();
+            }
+            activeDrainers.decrementAndGet();
+            scheduleDrainers();
+            terminateIfDrained();
+        }
+    };
+
+    public AsyncEncryption(@NonNull Encryption encryption) {
+        this(encryption, CryptoExecutors.getPoolSize(), DEFAULT_MAX_PENDING, DEFAULT_BATCH_SIZE);
+    }
+
+    /**
+     * @param threads    - the number of worker threads
+     * @param maxPending - the maximum number of requests waiting for workers
+     * @param batchSize  - the number of requests a worker runs per task
+     */
+    public AsyncEncryption(@NonNull final Encryption encryption, int threads, int maxPending,
+            int batchSize) {
+        if (threads <= 0 || maxPending <= 0 || batchSize <= 0) {
+            throw new IllegalArgumentException("threads, maxPending and batchSize must be positive");
+        }
+        this.threads = threads;
+        this.maxPending = maxPending;
+        this.batchSize = batchSize;
+        this.workers = new ThreadLocal<Encryption>() {
+            @Override
+            protected Encryption initialValue() {
+                return encryption.copy();
+            }
+        };
+        this.executor = new ThreadPoolExecutor(threads, threads, 10, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), CryptoExecutors.newThreadFactory("EncryptUtils-async"));
+        this.executor.allowCoreThreadTimeOut(true);
+        this.streamExecutor = new ThreadPoolExecutor(threads, threads, 10, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), CryptoExecutors.newThreadFactory("EncryptUtils-stream"));
+        this.streamExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * @throws java.util.concurrent.RejectedExecutionException if too many requests are pending
+     */
+    @NonNull
+    public Future<String> encryptAsync(@NonNull final String plainText) {
+        return submit(new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                return workers.get().encrypt(plainText);
+            }
+        });
+    }
+
+    /**
+     * @throws java.util.concurrent.RejectedExecutionException if too many requests are pending
+     */
+    @NonNull
+    public Future<String> decryptAsync(@NonNull final String encrypted) {
+        return submit(new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                return workers.get().decrypt(encrypted);
+            }
+        });
+    }
+
+    @NonNull
+    private Future<String> submit(@NonNull Callable<String> callable) {
+        // counted before checking the flag, so that shutdown() sees it and waits for it
+        if (pendingCount.incrementAndGet() > maxPending) {
+            pendingCount.decrementAndGet();
+            throw new RejectedExecutionException("Too many pending requests: " + maxPending);
+        }
+        if (shutdown) {
+            pendingCount.decrementAndGet();
+            terminateIfDrained();
+            throw new RejectedExecutionException("Already shut down");
+        }
+        FutureTask<String> task = new FutureTask<>(callable);
+        queue.add(task);
+        scheduleDrainers();
+        return task;
+    }
+
+    private void scheduleDrainers() {
+        while (!queue.isEmpty()) {
+            int n = activeDrainers.get();
+            if (n >= threads) {
+                return; // running drainers will pick up the rest
+            }
+            if (activeDrainers.compareAndSet(n, n + 1)) {
+                try {
+                    executor.execute(drainer);
+                } catch (RejectedExecutionException e) {
+                    activeDrainers.decrementAndGet();
+                    cancelPending();
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Shuts down the executor after {@link #shutdown()} once no request is pending or running.
+     */
+    private void terminateIfDrained() {
+        if (shutdown && pendingCount.get() == 0 && activeDrainers.get() == 0) {
+            executor.shutdown();
+        }
+    }
+
+    private void cancelPending() {
+        FutureTask<String> task;
+        while ((task = queue.poll()) != null) {
+            pendingCount.decrementAndGet();
+            task.cancel(false);
+        }
+    }
+
+    /**
+     * Encrypts all the values of {@code plainTexts}, pulling them in batches as workers become
+     * free. {@code plainTexts} is accessed by one thread at a time.
+     */
+    public void encryptAll(@NonNull Iterator<String> plainTexts, @NonNull Callback callback) {
+        new Stream(plainTexts, callback, true).start();
+    }
+
+    /**
+     * Decrypts all the values of {@code encrypted}, pulling them in batches as workers become
+     * free. {@code encrypted} is accessed by one thread at a time.
+     */
+    public void decryptAll(@NonNull Iterator<String> encrypted, @NonNull Callback callback) {
+        new Stream(encrypted, callback, false).start();
+    }
+
+    /**
+     * Stops accepting requests and streams. Requests already queued and streams already started
+     * are run to the end, and then the worker threads exit.
+     */
+    public void shutdown() {
+        shutdown = true;
+        streamExecutor.shutdown();
+        terminateIfDrained();
+    }
+
+    private class Stream implements Runnable {
+
+        private final Iterator<String> source;
+
+        private final Callback callback;
+
+        private final boolean encrypt;
+
+        private final AtomicBoolean failed = new AtomicBoolean();
+
+        private final AtomicInteger runningWorkers = new AtomicInteger();
+
+        private int nextIndex;
+
+        Stream(@NonNull Iterator<String> source, @NonNull Callback callback, boolean encrypt) {
+            this.source = source;
+            this.callback = callback;
+            this.encrypt = encrypt;
+        }
+
+        void start() {
+            runningWorkers.set(threads);
+            for (int i = 0; i < threads; i++) {
+                try {
+                    streamExecutor.execute(this);
+                } catch (RejectedExecutionException e) {
+                    fail(e);
+                    finishWorker();
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            Encryption worker = workers.get();
+            List<String> batch = new ArrayList<>(batchSize);
+            try {
+                while (!failed.get()) {
+                    int startIndex;
+                    synchronized (this) {
+                        startIndex = nextIndex;
+                        while (batch.size() < batchSize && source.hasNext()) {
+                            batch.add(source.next());
+                        }
+                        nextIndex += batch.size();
+                    }
+                    if (batch.isEmpty()) {
+                        break;
+                    }
+                    for (int i = 0; i < batch.size() && !failed.get(); i++) {
+                        String value = batch.get(i);
+                        callback.onNext(startIndex + i, encrypt ? worker.encrypt(value) : worker.decrypt(value));
+                    }
+                    batch.clear();
+                }
+            } catch (Throwable e) {
+                fail(e);
+            } finally {
+                finishWorker();
+            }
+        }
+
+        private void fail(@NonNull Throwable e) {
+            if (failed.compareAndSet(false, true)) {
+                callback.onError(e);
+            }
+        }
+
+        private void finishWorker() {
+            if (runningWorkers.decrementAndGet() == 0 && !failed.get()) {
+                callback.onComplete();
+            }
+        }
+    }
+}
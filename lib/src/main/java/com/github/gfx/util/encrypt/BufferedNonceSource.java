@@ -0,0 +1,88 @@
+package com.github.gfx.util.encrypt;
+
+import android.support.annotation.NonNull;
+
+import java.security.SecureRandom;
+
+/**
+ * A {@link com.github.gfx.util.encrypt.NonceSource} that fetches random bytes from
+ * {@link java.security.SecureRandom} in large blocks and hands out nonces from a per-thread buffer,
+ * so that encrypting short values does not cost a call to the entropy source each time.
+ */
+public class BufferedNonceSource implements NonceSource {
+
+    /**
+     * The default size of the per-thread buffer.
+     */
+    public static final int DEFAULT_BLOCK_SIZE = 4096;
+
+    private static BufferedNonceSource instance;
+
+    /**
+     * @return The process-wide instance with {@link #DEFAULT_BLOCK_SIZE}.
+     */
+    @NonNull
+    public static synchronized BufferedNonceSource getInstance() {
+        if (instance == null) {
+            instance = new BufferedNonceSource(new SecureRandom(), DEFAULT_BLOCK_SIZE);
+        }
+        return instance;
+    }
+
+    private final SecureRandom random;
+
+    private final int blockSize;
+
+    private final ThreadLocal<Block> blocks = new ThreadLocal<Block>() {
+        @Override
+        protected Block initialValue() {
+            return new Block(blockSize);
+        }
+    };
+
+    public BufferedNonceSource(@NonNull SecureRandom random, int blockSize) {
+        if (blockSize <= 0) {
+            throw new IllegalArgumentException("blockSize must be positive but got=" + blockSize);
+        }
+        this.random = random;
+        this.blockSize = blockSize;
+    }
+
+    @Override
+    public void nextNonce(@NonNull byte[] dest, int offset, int length) {
+        Block block = blocks.get();
+        while (length > 0) {
+            if (block.position == block.bytes.length) {
+                block.refill(random);
+            }
+            int n = Math.min(length, block.bytes.length - block.position);
+            System.arraycopy(block.bytes, block.position, dest, offset, n);
+            // never hand out the same bytes twice, even from a heap dump
+            for (int i = block.position; i < block.position + n; i++) {
+                block.bytes[i] = 0;
+            }
+            block.position += n;
+            offset += n;
+            length -= n;
+        }
+    }
+
+    private static class Block {
+
+        final byte[] bytes;
+
+        int position;
+
+        Block(int size) {
+            bytes = new byte[size];
+            position = size; // empty; filled on demand
+        }
+
+        void refill(SecureRandom random) {
+            synchronized (random) {
+                random.nextBytes(bytes);
+            }
+            position = 0;
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package com.github.gfx.util.encrypt;
+
+import android.support.annotation.NonNull;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.crypto.SecretKey;
+
+/**
+ * A {@link com.github.gfx.util.encrypt.KeyProvider} that loads the key once and keeps the handle
+ * in memory. Use {@link #prefetch()} to load the key off the main thread in advance.
+ */
+public abstract class CachedKeyProvider implements KeyProvider {
+
+    private final AtomicReference<FutureTask<SecretKey>> task
+            = new AtomicReference<>(newTask());
+
+    /**
+     * Loads the key. Called once per instance unless it fails.
+     */
+    @NonNull
+    protected abstract SecretKey loadKey() throws Exception;
+
+    @NonNull
+    private FutureTask<SecretKey> newTask() {
+        return new FutureTask<>(new Callable<SecretKey>() {
+            @Override
+            public SecretKey call() throws Exception {
+                return loadKey();
+            }
+        });
+    }
+
+    @NonNull
+    @Override
+    public SecretKey getKey() {
+        FutureTask<SecretKey> t = task.get();
+        t.run(); // no-op if it has already run or is running
+        try {
+            return t.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        } catch (ExecutionException e) {
+            task.compareAndSet(t, newTask()); // retry next time
+            throw new IllegalStateException("Failed to load the private key", e.getCause());
+        }
+    }
+
+    /**
+     * Starts loading the key in a background thread.
+     */
+    @NonNull
+    public Future<SecretKey> prefetch() {
+        return prefetch(CryptoExecutors.getDefault());
+    }
+
+    /**
+     * Starts loading the key in {@code executor}.
+     */
+    @NonNull
+    public Future<SecretKey> prefetch(@NonNull Executor executor) {
+        FutureTask<SecretKey> t = task.get();
+        if (!t.isDone()) {
+            executor.execute(t);
+        }
+        return t;
+    }
+}
@@ -0,0 +1,374 @@
+package com.github.gfx.util.encrypt;
+
+import android.support.annotation.NonNull;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+/**
+ * An encrypted file format for random access. The plain text is split into fixed-size chunks
+ * which are encrypted independently with their own IVs, so reading a range of bytes decrypts
+ * only the chunks it touches.
+ * <p>
+ * The layout is: a header with a random file id, encrypted chunks ({@code IV || ciphertext}),
+ * a chunk index (offset and length of each chunk), a sealed copy of the metadata (file id,
+ * chunk size, chunk count and plain length) and a footer pointing to the index. With AES-GCM,
+ * each chunk is authenticated together with the file id and its index, and the seal
+ * authenticates the metadata, so chunks cannot be reordered, dropped or mixed with those of
+ * another file, and the length cannot be changed.
+ * <p>
+ * With AES-CBC, nothing is authenticated: a modified chunk usually fails to decrypt, but chunks
+ * of the same file may be swapped or replaced with chunks of another file encrypted with the
+ * same key without being detected. Use an AES-GCM {@link com.github.gfx.util.encrypt.Encryption}
+ * if the file may be tampered with.
+ */
+public class ChunkedEncryptedFile {
+
+    /**
+     * The default chunk size in bytes.
+     */
+    public static final int DEFAULT_CHUNK_SIZE = 64 * 1024;
+
+    private static final int MAGIC = 0x45434631; // "ECF1"
+
+    private static final int VERSION = 1;
+
+    private static final int FILE_ID_SIZE = 16;
+
+    // magic(4) version(2) reserved(2) chunkSize(4) plainLength(8) fileId(16)
+    private static final int HEADER_SIZE = 4 + 2 + 2 + 4 + 8 + FILE_ID_SIZE;
+
+    // offset(8) length(4)
+    private static final int INDEX_ENTRY_SIZE = 8 + 4;
+
+    // fileId(16) chunkSize(4) chunkCount(4) plainLength(8)
+    private static final int METADATA_SIZE = FILE_ID_SIZE + 4 + 4 + 8;
+
+    // indexOffset(8) chunkCount(4) sealLength(4) magic(4)
+    private static final int FOOTER_SIZE = 8 + 4 + 4 + 4;
+
+    public static long write(@NonNull Encryption encryption, @NonNull InputStream in,
+            @NonNull File file) throws IOException {
+        return write(encryption, in, file, DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * Encrypts the content of {@code in} into {@code file}, which is replaced atomically: the
+     * content is written to a temporary file next to {@code file}, synced and renamed, so a crash
+     * leaves either the old file or the new one. {@code in} is not closed.
+     *
+     * @return The length of the plain text
+     */
+    public static long write(@NonNull Encryption encryption, @NonNull InputStream in,
+            @NonNull File file, int chunkSize) throws IOException {
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("chunkSize must be positive but got=" + chunkSize);
+        }
+
+        File tempFile = new File(file.getPath() + ".tmp");
+        boolean renamed = false;
+        try {
+            long plainLength = writeTo(encryption, in, tempFile, chunkSize);
+            if (!tempFile.renameTo(file)) {
+                throw new IOException("Failed to rename " + tempFile + " to " + file);
+            }
+            renamed = true;
+            return plainLength;
+        } finally {
+            if (!renamed) {
+                //noinspection ResultOfMethodCallIgnored
+                tempFile.delete();
+            }
+        }
+    }
+
+    private static long writeTo(@NonNull Encryption encryption, @NonNull InputStream in,
+            @NonNull File file, int chunkSize) throws IOException {
+        byte[] fileId = new byte[FILE_ID_SIZE];
+        new SecureRandom().nextBytes(fileId);
+
+        byte[] plain = new byte[chunkSize];
+        byte[] encrypted = new byte[Encryption.getMaxEncryptedLength(Math.max(chunkSize, METADATA_SIZE))];
+        ByteBuffer index = ByteBuffer.allocate(INDEX_ENTRY_SIZE * 16);
+        long plainLength = 0;
+        int chunkCount = 0;
+
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(0);
+            raf.seek(HEADER_SIZE);
+            long offset = HEADER_SIZE;
+            int length;
+            while ((length = readFully(in, plain, chunkSize)) > 0) {
+                int encryptedLength = encryption.encryptBytes(plain, 0, length, encrypted, 0,
+                        createAad(fileId, chunkCount));
+                raf.write(encrypted, 0, encryptedLength);
+
+                if (index.remaining() < INDEX_ENTRY_SIZE) {
+                    ByteBuffer newIndex = ByteBuffer.allocate(index.capacity() * 2);
+                    index.flip();
+                    newIndex.put(index);
+                    index = newIndex;
+                }
+                index.putLong(offset);
+                index.putInt(encryptedLength);
+
+                offset += encryptedLength;
+                plainLength += length;
+                chunkCount++;
+                if (length < chunkSize) {
+                    break;
+                }
+            }
+
+            raf.write(index.array(), 0, index.position());
+            byte[] metadata = createMetadata(fileId, chunkSize, chunkCount, plainLength);
+            int sealLength = encryption.encryptBytes(metadata, 0, metadata.length, encrypted, 0, metadata);
+            raf.write(encrypted, 0, sealLength);
+            raf.writeLong(offset);
+            raf.writeInt(chunkCount);
+            raf.writeInt(sealLength);
+            raf.writeInt(MAGIC);
+
+            raf.seek(0);
+            raf.writeInt(MAGIC);
+            raf.writeShort(VERSION);
+            raf.writeShort(0);
+            raf.writeInt(chunkSize);
+            raf.writeLong(plainLength);
+            raf.write(fileId);
+            raf.getFD().sync();
+        } finally {
+            raf.close();
+        }
+        return plainLength;
+    }
+
+    /**
+     * Opens {@code file} for random access. Note that the {@link Reader} uses {@code encryption}
+     * and is not thread-safe either.
+     */
+    @NonNull
+    public static Reader open(@NonNull Encryption encryption, @NonNull File file) throws IOException {
+        return new Reader(encryption, file);
+    }
+
+    private static int readFully(@NonNull InputStream in, @NonNull byte[] buffer, int length)
+            throws IOException {
+        int total = 0;
+        while (total < length) {
+            int n = in.read(buffer, total, length - total);
+            if (n < 0) {
+                break;
+            }
+            total += n;
+        }
+        return total;
+    }
+
+    @NonNull
+    private static byte[] createAad(@NonNull byte[] fileId, long chunkIndex) {
+        return ByteBuffer.allocate(FILE_ID_SIZE + 8).put(fileId).putLong(chunkIndex).array();
+    }
+
+    @NonNull
+    private static byte[] createMetadata(@NonNull byte[] fileId, int chunkSize, int chunkCount,
+            long plainLength) {
+        return ByteBuffer.allocate(METADATA_SIZE)
+                .put(fileId)
+                .putInt(chunkSize)
+                .putInt(chunkCount)
+                .putLong(plainLength)
+                .array();
+    }
+
+    /**
+     * Reads ranges of a {@link ChunkedEncryptedFile}. The last decrypted chunk is kept, so that
+     * sequential reads decrypt each chunk once.
+     */
+    public static class Reader implements Closeable {
+
+        private final Encryption encryption;
+
+        private final RandomAccessFile file;
+
+        private final FileChannel channel;
+
+        private final int chunkSize;
+
+        private final long length;
+
+        private final byte[] fileId = new byte[FILE_ID_SIZE];
+
+        private final long[] chunkOffsets;
+
+        private final int[] chunkLengths;
+
+        private final ByteBuffer encrypted;
+
+        private final byte[] plain;
+
+        private int currentChunk = -1;
+
+        private int currentChunkLength;
+
+        private Reader(@NonNull Encryption encryption, @NonNull File path) throws IOException {
+            this.encryption = encryption;
+            this.file = new RandomAccessFile(path, "r");
+            this.channel = file.getChannel();
+            try {
+                if (file.length() < HEADER_SIZE + FOOTER_SIZE) {
+                    throw new IOException("Not a chunked encrypted file: " + path);
+                }
+                ByteBuffer header = readAt(0, HEADER_SIZE);
+                if (header.getInt() != MAGIC) {
+                    throw new IOException("Not a chunked encrypted file: " + path);
+                }
+                int version = header.getShort() & 0xFFFF;
+                if (version != VERSION) {
+                    throw new IOException("Unsupported version: " + version);
+                }
+                header.getShort(); // reserved
+                chunkSize = header.getInt();
+                length = header.getLong();
+                header.get(fileId);
+
+                long footerOffset = file.length() - FOOTER_SIZE;
+                ByteBuffer footer = readAt(footerOffset, FOOTER_SIZE);
+                long indexOffset = footer.getLong();
+                int chunkCount = footer.getInt();
+                int sealLength = footer.getInt();
+                // the index and the seal must fill the space between the chunks and the footer exactly
+                long indexSize = (long) chunkCount * INDEX_ENTRY_SIZE;
+                if (footer.getInt() != MAGIC || chunkSize <= 0 || chunkCount < 0 || length < 0
+                        || (long) chunkCount * chunkSize < length
+                        || sealLength < 0 || sealLength > Encryption.getMaxEncryptedLength(METADATA_SIZE)
+                        || indexOffset < HEADER_SIZE || indexOffset + indexSize + sealLength != footerOffset
+                        || indexSize > Integer.MAX_VALUE) {
+                    throw new IOException("Broken chunked encrypted file: " + path);
+                }
+
+                byte[] metadata = createMetadata(fileId, chunkSize, chunkCount, length);
+                ByteBuffer seal = readAt(indexOffset + indexSize, sealLength);
+                byte[] sealed = new byte[Encryption.getMaxEncryptedLength(METADATA_SIZE)];
+                int sealedLength;
+                try {
+                    sealedLength = encryption.decryptBytes(seal.array(), 0, sealLength, sealed, 0, metadata);
+                } catch (Encryption.UnexpectedDecryptionStateException e) {
+                    throw new IOException("Failed to decrypt the metadata: " + path, e);
+                }
+                if (sealedLength != METADATA_SIZE
+                        || !Arrays.equals(Arrays.copyOf(sealed, sealedLength), metadata)) {
+                    throw new IOException("The metadata does not match: " + path);
+                }
+
+                ByteBuffer index = readAt(indexOffset, (int) indexSize);
+                chunkOffsets = new long[chunkCount];
+                chunkLengths = new int[chunkCount];
+                for (int i = 0; i < chunkCount; i++) {
+                    chunkOffsets[i] = index.getLong();
+                    chunkLengths[i] = index.getInt();
+                    if (chunkOffsets[i] < HEADER_SIZE || chunkLengths[i] < 0
+                            || chunkOffsets[i] + chunkLengths[i] > indexOffset) {
+                        throw new IOException("Broken chunk index: " + i);
+                    }
+                }
+            } catch (IOException e) {
+                file.close();
+                throw e;
+            }
+
+            encrypted = ByteBuffer.allocate(Encryption.getMaxEncryptedLength(chunkSize));
+            plain = new byte[Encryption.getMaxEncryptedLength(chunkSize)];
+        }
+
+        @NonNull
+        private ByteBuffer readAt(long position, int size) throws IOException {
+            ByteBuffer buffer = ByteBuffer.allocate(size);
+            readAt(position, buffer);
+            buffer.flip();
+            return buffer;
+        }
+
+        private void readAt(long position, @NonNull ByteBuffer buffer) throws IOException {
+            while (buffer.hasRemaining()) {
+                int n = channel.read(buffer, position);
+                if (n < 0) {
+                    throw new EOFException();
+                }
+                position += n;
+            }
+        }
+
+        /**
+         * @return The length of the plain text
+         */
+        public long length() {
+            return length;
+        }
+
+        /**
+         * Reads up to {@code len} bytes of the plain text from {@code position}.
+         *
+         * @return The number of bytes read, or -1 if {@code position} is at the end
+         * @throws IOException if a chunk is broken or fails to decrypt
+         */
+        public int read(long position, @NonNull byte[] b, int off, int len) throws IOException {
+            if (position < 0 || off < 0 || len < 0 || off + len > b.length) {
+                throw new IndexOutOfBoundsException();
+            }
+            if (position >= length) {
+                return -1;
+            }
+            len = (int) Math.min(len, length - position);
+
+            int total = 0;
+            while (total < len) {
+                long p = position + total;
+                int chunk = (int) (p / chunkSize);
+                int chunkOffset = (int) (p % chunkSize);
+                loadChunk(chunk);
+                int n = Math.min(len - total, currentChunkLength - chunkOffset);
+                if (n <= 0) {
+                    throw new IOException("Chunk " + chunk + " is shorter than expected");
+                }
+                System.arraycopy(plain, chunkOffset, b, off + total, n);
+                total += n;
+            }
+            return total;
+        }
+
+        private void loadChunk(int chunk) throws IOException {
+            if (chunk == currentChunk) {
+                return;
+            }
+            if (chunk >= chunkOffsets.length || chunkLengths[chunk] > encrypted.capacity()) {
+                throw new IOException("Broken chunk: " + chunk);
+            }
+            currentChunk = -1;
+            encrypted.clear();
+            encrypted.limit(chunkLengths[chunk]);
+            readAt(chunkOffsets[chunk], encrypted);
+            try {
+                currentChunkLength = encryption.decryptBytes(encrypted.array(), 0, chunkLengths[chunk],
+                        plain, 0, createAad(fileId, chunk));
+            } catch (Encryption.UnexpectedDecryptionStateException e) {
+                throw new IOException("Failed to decrypt chunk " + chunk, e);
+            }
+            currentChunk = chunk;
+        }
+
+        @Override
+        public void close() throws IOException {
+            file.close();
+        }
+    }
+}
@@ -0,0 +1,209 @@
+package com.github.gfx.util.encrypt;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Build;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.annotation.WorkerThread;
+import android.util.Log;
+
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.security.Provider;
+import java.security.SecureRandom;
+import java.security.Security;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Selects the fastest cipher on the device by a short benchmark of the available security
+ * providers and modes, and remembers the winner until the OS is updated.
+ * <p>
+ * {@link com.github.gfx.util.encrypt.Encryption} flags its output with the mode, so values
+ * encrypted before the selection changes remain readable.
+ *
+ * <pre>
+ * Encryption encryption = new Encryption(CipherSelector.getCipher(context), context);
+ * </pre>
+ */
+public class CipherSelector {
+
+    private static final String TAG = CipherSelector.class.getSimpleName();
+
+    /**
+     * Modes to benchmark. ChaCha20-Poly1305 is not a candidate because it needs 256-bit keys
+     * and 96-bit nonces.
+     */
+    private static final String[] CANDIDATE_ALGORITHM_MODES = {
+            Encryption.DEFAULT_ALGORITHM_MODE,
+            "AES/GCM/NoPadding",
+    };
+
+    private static final String KEY_PROVIDER = "provider";
+
+    private static final String KEY_ALGORITHM_MODE = "algorithm_mode";
+
+    private static final String KEY_FINGERPRINT = "fingerprint";
+
+    private static final int PAYLOAD_SIZE = 256;
+
+    private static final int WARMUP_ITERATIONS = 20;
+
+    private static final int MAX_ITERATIONS = 500;
+
+    private static final long MAX_MILLIS_PER_CANDIDATE = 50;
+
+    @NonNull
+    private static SharedPreferences getPreferences(@NonNull Context context) {
+        return context.getSharedPreferences(context.getPackageName() + "_cipher_selection",
+                Context.MODE_PRIVATE);
+    }
+
+    /**
+     * @return A new instance of the selected cipher if {@link #select(android.content.Context)} has
+     * run on this OS build; otherwise {@link Encryption#getDefaultCipher()}, while the selection
+     * starts in a background thread for later calls.
+     */
+    @NonNull
+    public static Cipher getCipher(@NonNull Context context) {
+        Cipher cipher = getSelectedCipher(context);
+        if (cipher != null) {
+            return cipher;
+        }
+        selectAsync(context);
+        return Encryption.getDefaultCipher();
+    }
+
+    /**
+     * @return A new instance of the selected cipher, or null if it has not been selected on this OS
+     * build.
+     */
+    @Nullable
+    public static Cipher getSelectedCipher(@NonNull Context context) {
+        return getSelectedCipher(getPreferences(context));
+    }
+
+    @Nullable
+    /* package */ static Cipher getSelectedCipher(@NonNull SharedPreferences prefs) {
+        if (!Build.FINGERPRINT.equals(prefs.getString(KEY_FINGERPRINT, null))) {
+            return null;
+        }
+        try {
+            return Cipher.getInstance(prefs.getString(KEY_ALGORITHM_MODE, null),
+                    prefs.getString(KEY_PROVIDER, null));
+        } catch (GeneralSecurityException | RuntimeException e) {
+            Log.w(TAG, "The selected cipher is no longer available", e);
+            return null;
+        }
+    }
+
+    /**
+     * Runs {@link #select(android.content.Context)} in a background thread.
+     */
+    @NonNull
+    public static Future<Cipher> selectAsync(@NonNull final Context context) {
+        return CryptoExecutors.getDefault().submit(new Callable<Cipher>() {
+            @Override
+            public Cipher call() throws Exception {
+                return select(context);
+            }
+        });
+    }
+
+    /**
+     * Benchmarks the candidates, if not done yet on this OS build, and remembers the fastest one.
+     * This takes up to a few hundred milliseconds; do not call it in the main thread.
+     *
+     * @return A new instance of the selected cipher
+     */
+    @NonNull
+    @WorkerThread
+    public static Cipher select(@NonNull Context context) {
+        return select(getPreferences(context));
+    }
+
+    /**
+     * @param prefs - where the selection is remembered
+     */
+    @NonNull
+    @WorkerThread
+    /* package */ static synchronized Cipher select(@NonNull SharedPreferences prefs) {
+        Cipher selected = getSelectedCipher(prefs);
+        if (selected != null) {
+            return selected;
+        }
+
+        byte[] key = new byte[Encryption.KEY_LENGTH];
+        byte[] payload = new byte[PAYLOAD_SIZE];
+        SecureRandom random = new SecureRandom();
+        random.nextBytes(key);
+        random.nextBytes(payload);
+        String plainText = new String(payload, Charset.forName("ISO-8859-1"));
+
+        Cipher best = null;
+        long bestNanos = Long.MAX_VALUE;
+        for (Provider provider : Security.getProviders()) {
+            for (String algorithmMode : CANDIDATE_ALGORITHM_MODES) {
+                if (algorithmMode.contains("/GCM/") && Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT) {
+                    continue; // GCMParameterSpec is not available
+                }
+                Cipher cipher;
+                try {
+                    cipher = Cipher.getInstance(algorithmMode, provider);
+                } catch (GeneralSecurityException e) {
+                    continue;
+                }
+                long nanos = benchmark(cipher, key, plainText);
+                Log.d(TAG, provider.getName() + " " + algorithmMode + ": " + nanos + "ns/op");
+                if (nanos < bestNanos) {
+                    best = cipher;
+                    bestNanos = nanos;
+                }
+            }
+        }
+        if (best == null) {
+            return Encryption.getDefaultCipher();
+        }
+
+        prefs.edit()
+                .putString(KEY_PROVIDER, best.getProvider().getName())
+                .putString(KEY_ALGORITHM_MODE, best.getAlgorithm())
+                .putString(KEY_FINGERPRINT, Build.FINGERPRINT)
+                .commit();
+        return best;
+    }
+
+    /**
+     * @return Nanoseconds per an encryption and a decryption, or {@code Long.MAX_VALUE} if the
+     * cipher does not work.
+     */
+    private static long benchmark(@NonNull Cipher cipher, @NonNull byte[] key, @NonNull String plainText) {
+        try {
+            Encryption encryption = new Encryption(cipher, new SecretKeySpec(key, "AES"));
+            for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+                if (!encryption.decrypt(encryption.encrypt(plainText)).equals(plainText)) {
+                    return Long.MAX_VALUE;
+                }
+            }
+
+            long deadline = SystemClock.elapsedRealtime() + MAX_MILLIS_PER_CANDIDATE;
+            long start = System.nanoTime();
+            int iterations = 0;
+            do {
+                encryption.decrypt(encryption.encrypt(plainText));
+                iterations++;
+            } while (iterations < MAX_ITERATIONS && SystemClock.elapsedRealtime() < deadline);
+            return (System.nanoTime() - start) / iterations;
+        } catch (RuntimeException e) {
+            return Long.MAX_VALUE;
+        }
+    }
+
+    private CipherSelector() {
+    }
+}
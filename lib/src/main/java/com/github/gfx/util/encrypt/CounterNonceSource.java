@@ -0,0 +1,56 @@
+package com.github.gfx.util.encrypt;
+
+import android.support.annotation.NonNull;
+
+import java.security.SecureRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A {@link com.github.gfx.util.encrypt.NonceSource} that makes nonces from a random prefix
+ * chosen once per instance and a 64-bit counter, which is what AES-GCM requires: nonces
+ * that never repeat under the same key, not nonces that are unpredictable.
+ * <p>
+ * Do not use this source with CBC mode, which requires unpredictable IVs.
+ */
+public class CounterNonceSource implements NonceSource {
+
+    private static final int COUNTER_LENGTH = 8;
+
+    private final byte[] prefix;
+
+    private final AtomicLong counter = new AtomicLong();
+
+    /**
+     * @param prefixLength - the number of random bytes before the counter; the nonce length
+     *                     must be {@code prefixLength + 8}.
+     */
+    public CounterNonceSource(int prefixLength) {
+        this(new SecureRandom(), prefixLength);
+    }
+
+    public CounterNonceSource(@NonNull SecureRandom random, int prefixLength) {
+        if (prefixLength < 0) {
+            throw new IllegalArgumentException("prefixLength must not be negative but got=" + prefixLength);
+        }
+        prefix = new byte[prefixLength];
+        random.nextBytes(prefix);
+    }
+
+    @Override
+    public void nextNonce(@NonNull byte[] dest, int offset, int length) {
+        if (length != prefix.length + COUNTER_LENGTH) {
+            throw new IllegalArgumentException("Unexpected nonce length."
+                    + " Expected=" + (prefix.length + COUNTER_LENGTH) + " but got=" + length);
+        }
+        long value = counter.getAndIncrement();
+        if (value < 0) {
+            throw new IllegalStateException("nonce counter exhausted");
+        }
+        System.arraycopy(prefix, 0, dest, offset, prefix.length);
+        int p = offset + prefix.length;
+        for (int i = COUNTER_LENGTH - 1; i >= 0; i--) {
+            dest[p + i] = (byte) value;
+            value >>>= 8;
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package com.github.gfx.util.encrypt;
+
+import android.os.Process;
+import android.support.annotation.NonNull;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/* package */ class CryptoExecutors {
+
+    private static final int MAX_POOL_SIZE = 4;
+
+    private static ExecutorService defaultExecutor;
+
+    /**
+     * @return The number of worker threads of {@link #getDefault()}.
+     */
+    static int getPoolSize() {
+        return Math.max(1, Math.min(MAX_POOL_SIZE, Runtime.getRuntime().availableProcessors()));
+    }
+
+    /**
+     * @return A process-wide executor with a bounded number of background threads, which are
+     * released when idle.
+     */
+    @NonNull
+    static synchronized ExecutorService getDefault() {
+        if (defaultExecutor == null) {
+            int poolSize = getPoolSize();
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(poolSize, poolSize,
+                    10, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                    newThreadFactory("EncryptUtils"));
+            executor.allowCoreThreadTimeOut(true);
+            defaultExecutor = executor;
+        }
+        return defaultExecutor;
+    }
+
+    @NonNull
+    static ThreadFactory newThreadFactory(@NonNull final String namePrefix) {
+        return new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(@NonNull final Runnable r) {
+                Thread thread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        r.run();
+                    }
+                }, namePrefix + "-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+
+    private CryptoExecutors() {
+    }
+}
@@ -0,0 +1,70 @@
+package com.github.gfx.util.encrypt;
+
+import android.content.Context;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * The default {@link com.github.gfx.util.encrypt.KeyProvider}, which derives a software key from
+ * {@code android.provider.Settings.Secure.ANDROID_ID} and the package name as
+ * {@link Encryption#getDefaultPrivateKey(android.content.Context)} does. Instances are shared
+ * process-wide per application context, so the key is derived only once. The key is derived on
+ * the first use, not in {@link #getInstance(android.content.Context)}.
+ */
+public class DefaultKeyProvider extends CachedKeyProvider {
+
+    private static final Map<Context, DefaultKeyProvider> instances = new HashMap<>();
+
+    /**
+     * @return The shared instance for the application context of {@code context}, or a new instance
+     * for {@code context} itself if it has no application context, e.g. a {@code MockContext}.
+     */
+    @NonNull
+    public static DefaultKeyProvider getInstance(@NonNull Context context) {
+        Context applicationContext = getApplicationContext(context);
+        if (applicationContext == null) {
+            return new DefaultKeyProvider(context);
+        }
+        synchronized (instances) {
+            DefaultKeyProvider instance = instances.get(applicationContext);
+            if (instance == null) {
+                instance = new DefaultKeyProvider(applicationContext);
+                instances.put(applicationContext, instance);
+            }
+            return instance;
+        }
+    }
+
+    @Nullable
+    private static Context getApplicationContext(@NonNull Context context) {
+        try {
+            return context.getApplicationContext();
+        } catch (UnsupportedOperationException e) {
+            return null; // MockContext
+        }
+    }
+
+    private final Context context;
+
+    private DefaultKeyProvider(@NonNull Context context) {
+        this.context = context;
+    }
+
+    @NonNull
+    @Override
+    protected SecretKey loadKey() {
+        byte[] privateKey = Encryption.getDefaultPrivateKey(context);
+        try {
+            return new SecretKeySpec(privateKey, "AES");
+        } finally {
+            Arrays.fill(privateKey, (byte) 0); // SecretKeySpec has its own copy
+        }
+    }
+}
@@ -0,0 +1,260 @@
+package com.github.gfx.util.encrypt;
+
+import android.support.annotation.NonNull;
+
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * A {@link com.github.gfx.util.encrypt.ValueCodec} that compresses values with Deflate if they are
+ * larger than a threshold. Encoded values start with a flag byte telling how the rest is stored,
+ * so values below the threshold or values that do not compress are stored as they are.
+ * <p>
+ * Because compression ratio depends on the content, the length of a compressed value tells
+ * something about its plain text. If {@code hideLength} is set, encoded values are padded
+ * to the next power of two.
+ * <p>
+ * A small deflated value can inflate to a huge one, so decoding fails with
+ * {@link java.lang.IllegalArgumentException} if a value inflates beyond {@code maxDecodedLength}.
+ */
+public class DeflateValueCodec implements ValueCodec {
+
+    /**
+     * The default threshold in bytes; smaller values rarely get shorter by Deflate.
+     */
+    public static final int DEFAULT_THRESHOLD = 256;
+
+    /**
+     * The default maximum length in bytes of decoded values.
+     */
+    public static final int DEFAULT_MAX_DECODED_LENGTH = 16 * 1024 * 1024;
+
+    private static final int FLAG_DEFLATED = 0x01;
+
+    private static final int FLAG_PADDED = 0x02;
+
+    private static final int MIN_PADDED_LENGTH = 32;
+
+    private static final int INITIAL_BUFFER_SIZE = 1024;
+
+    private static final int MAX_POOLED_BUFFER_SIZE = 64 * 1024;
+
+    private static final ThreadLocal<Buffers> buffers = new ThreadLocal<Buffers>() {
+        @Override
+        protected Buffers initialValue() {
+            return new Buffers();
+        }
+    };
+
+    private final int threshold;
+
+    private final boolean hideLength;
+
+    private final int maxDecodedLength;
+
+    public DeflateValueCodec() {
+        this(DEFAULT_THRESHOLD, false);
+    }
+
+    /**
+     * @param threshold  - values shorter than this (in bytes) are not compressed
+     * @param hideLength - pads encoded values to the next power of two if true
+     */
+    public DeflateValueCodec(int threshold, boolean hideLength) {
+        this(threshold, hideLength, DEFAULT_MAX_DECODED_LENGTH);
+    }
+
+    /**
+     * @param threshold        - values shorter than this (in bytes) are not compressed
+     * @param hideLength       - pads encoded values to the next power of two if true
+     * @param maxDecodedLength - the maximum length (in bytes) a value may inflate to
+     */
+    public DeflateValueCodec(int threshold, boolean hideLength, int maxDecodedLength) {
+        if (threshold < 0) {
+            throw new IllegalArgumentException("threshold must not be negative but got=" + threshold);
+        }
+        if (maxDecodedLength <= 0) {
+            throw new IllegalArgumentException("maxDecodedLength must be positive but got=" + maxDecodedLength);
+        }
+        this.threshold = threshold;
+        this.hideLength = hideLength;
+        this.maxDecodedLength = maxDecodedLength;
+    }
+
+    @NonNull
+    @Override
+    public byte[] encode(@NonNull byte[] plain) {
+        Buffers b = buffers.get();
+        int flags = 0;
+        byte[] body = plain;
+        int bodyLength = plain.length;
+
+        if (plain.length >= threshold) {
+            int compressedLength = b.deflate(plain);
+            if (compressedLength < plain.length) {
+                flags |= FLAG_DEFLATED;
+                body = b.buffer;
+                bodyLength = compressedLength;
+            }
+        }
+
+        byte[] encoded;
+        if (hideLength) {
+            flags |= FLAG_PADDED;
+            encoded = new byte[paddedLength(1 + 4 + bodyLength)];
+            encoded[0] = (byte) flags;
+            writeInt(encoded, 1, bodyLength);
+            System.arraycopy(body, 0, encoded, 1 + 4, bodyLength);
+        } else {
+            encoded = new byte[1 + bodyLength];
+            encoded[0] = (byte) flags;
+            System.arraycopy(body, 0, encoded, 1, bodyLength);
+        }
+        b.release();
+        return encoded;
+    }
+
+    @NonNull
+    @Override
+    public byte[] decode(@NonNull byte[] encoded) {
+        if (encoded.length < 1) {
+            throw new IllegalArgumentException("encoded value is empty");
+        }
+        int flags = encoded[0] & 0xFF;
+        if ((flags & ~(FLAG_DEFLATED | FLAG_PADDED)) != 0) {
+            throw new IllegalArgumentException("Unknown flags: " + Integer.toHexString(flags));
+        }
+
+        int offset = 1;
+        int length = encoded.length - 1;
+        if ((flags & FLAG_PADDED) != 0) {
+            if (encoded.length < 1 + 4) {
+                throw new IllegalArgumentException("encoded value is too short");
+            }
+            offset = 1 + 4;
+            length = readInt(encoded, 1);
+            if (length < 0 || length > encoded.length - offset) {
+                throw new IllegalArgumentException("Invalid length: " + length);
+            }
+        }
+
+        if ((flags & FLAG_DEFLATED) == 0) {
+            return Arrays.copyOfRange(encoded, offset, offset + length);
+        }
+
+        Buffers b = buffers.get();
+        try {
+            int inflatedLength = b.inflate(encoded, offset, length, maxDecodedLength);
+            return Arrays.copyOf(b.buffer, inflatedLength);
+        } catch (DataFormatException e) {
+            throw new IllegalArgumentException(e);
+        } finally {
+            b.release();
+        }
+    }
+
+    private static int paddedLength(int length) {
+        int padded = MIN_PADDED_LENGTH;
+        while (padded < length) {
+            padded <<= 1;
+        }
+        return padded;
+    }
+
+    private static void writeInt(byte[] buffer, int offset, int value) {
+        buffer[offset] = (byte) (value >>> 24);
+        buffer[offset + 1] = (byte) (value >>> 16);
+        buffer[offset + 2] = (byte) (value >>> 8);
+        buffer[offset + 3] = (byte) value;
+    }
+
+    private static int readInt(byte[] buffer, int offset) {
+        return ((buffer[offset] & 0xFF) << 24)
+                | ((buffer[offset + 1] & 0xFF) << 16)
+                | ((buffer[offset + 2] & 0xFF) << 8)
+                | (buffer[offset + 3] & 0xFF);
+    }
+
+    /**
+     * A per-thread scratch buffer. {@link java.util.zip.Deflater} and {@link java.util.zip.Inflater}
+     * are created per call and ended at once, because their native memory is otherwise held until
+     * finalization by every thread that has used them.
+     */
+    private static class Buffers {
+
+        byte[] buffer = new byte[INITIAL_BUFFER_SIZE];
+
+        int used;
+
+        int deflate(byte[] input) {
+            Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+            try {
+                deflater.setInput(input);
+                deflater.finish();
+                int length = 0;
+                while (!deflater.finished()) {
+                    if (length == buffer.length) {
+                        if (length >= input.length) {
+                            used = length;
+                            return length; // does not compress; give up
+                        }
+                        grow(buffer.length * 2);
+                    }
+                    length += deflater.deflate(buffer, length, buffer.length - length);
+                    used = length;
+                }
+                return length;
+            } finally {
+                deflater.end();
+            }
+        }
+
+        /**
+         * @param maxLength - fails if the input inflates to more than this
+         */
+        int inflate(byte[] input, int offset, int length, int maxLength) throws DataFormatException {
+            Inflater inflater = new Inflater();
+            try {
+                inflater.setInput(input, offset, length);
+                int inflatedLength = 0;
+                while (!inflater.finished()) {
+                    if (inflatedLength == buffer.length) {
+                        if (inflatedLength > maxLength) {
+                            throw new DataFormatException("inflated value exceeds " + maxLength + " bytes");
+                        }
+                        // one byte more than maxLength to tell an exceeding value from a value of maxLength
+                        grow((int) Math.min(buffer.length * 2L, maxLength + 1L));
+                    }
+                    int n = inflater.inflate(buffer, inflatedLength, buffer.length - inflatedLength);
+                    if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                        throw new DataFormatException("truncated deflate stream");
+                    }
+                    inflatedLength += n;
+                    used = inflatedLength;
+                }
+                if (inflatedLength > maxLength) {
+                    throw new DataFormatException("inflated value exceeds " + maxLength + " bytes");
+                }
+                return inflatedLength;
+            } finally {
+                inflater.end();
+            }
+        }
+
+        private void grow(int newLength) {
+            byte[] newBuffer = Arrays.copyOf(buffer, newLength);
+            Arrays.fill(buffer, (byte) 0); // the old buffer may have plain texts
+            buffer = newBuffer;
+        }
+
+        void release() {
+            Arrays.fill(buffer, 0, used, (byte) 0); // the buffer may have plain texts
+            used = 0;
+            if (buffer.length > MAX_POOLED_BUFFER_SIZE) {
+                buffer = new byte[INITIAL_BUFFER_SIZE];
+            }
+        }
+    }
+}
@@ -0,0 +1,171 @@
+package com.github.gfx.util.encrypt;
+
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A typed view of {@link com.github.gfx.util.encrypt.EncryptedSharedPreferences} that keeps
+ * deserialized objects in memory, so that repeated reads of the same key cost neither decryption
+ * nor parsing. Cached objects expire after a TTL or when the cache is full, and are invalidated
+ * whenever an editor of the preferences commits a change to their keys.
+ * <p>
+ * Cached objects are shared between callers, so they should be immutable.
+ * Call {@link #close()} when the store is no longer used.
+ *
+ * @param <T> The type of objects
+ */
+public class EncryptedObjectStore<T> {
+
+    /**
+     * Converts objects to and from strings stored in preferences, e.g. JSON.
+     */
+    public interface Serializer<T> {
+
+        @NonNull
+        String serialize(@NonNull T object);
+
+        @NonNull
+        T deserialize(@NonNull String serialized);
+    }
+
+    private final EncryptedSharedPreferences prefs;
+
+    private final Serializer<T> serializer;
+
+    private final long ttlMillis;
+
+    private final Map<String, CacheEntry<T>> cache;
+
+    private long generation;
+
+    private final EncryptedSharedPreferences.EditObserver editObserver
+            = new EncryptedSharedPreferences.EditObserver() {
+        @Override
+        public void onEdit(@NonNull Set<String> keys, boolean cleared) {
+            if (cleared) {
+                invalidateAll();
+            } else {
+                invalidate(keys);
+            }
+        }
+    };
+
+    /**
+     * @param ttlMillis - how long a cached object lives, in milliseconds
+     * @param maxSize   - the maximum number of cached objects; the least recently used one is
+     *                  evicted first
+     */
+    public EncryptedObjectStore(@NonNull EncryptedSharedPreferences prefs,
+            @NonNull Serializer<T> serializer, long ttlMillis, final int maxSize) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize must be positive but got=" + maxSize);
+        }
+        this.prefs = prefs;
+        this.serializer = serializer;
+        this.ttlMillis = ttlMillis;
+        this.cache = new LinkedHashMap<String, CacheEntry<T>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CacheEntry<T>> eldest) {
+                return size() > maxSize;
+            }
+        };
+        prefs.addEditObserver(editObserver);
+    }
+
+    /**
+     * @return The object for {@code key}, or null if there is no value for the key
+     */
+    @Nullable
+    public T get(@NonNull String key) {
+        long startGeneration;
+        synchronized (this) {
+            CacheEntry<T> entry = cache.get(key);
+            if (entry != null) {
+                if (SystemClock.elapsedRealtime() < entry.expiresAt) {
+                    return entry.object;
+                }
+                cache.remove(key);
+            }
+            startGeneration = generation;
+        }
+
+        String serialized = prefs.getString(key, null);
+        if (serialized == null) {
+            return null;
+        }
+        T object = serializer.deserialize(serialized);
+
+        synchronized (this) {
+            // the value may have been changed while decrypting it
+            if (generation == startGeneration) {
+                cache.put(key, new CacheEntry<>(object, SystemClock.elapsedRealtime() + ttlMillis));
+            }
+        }
+        return object;
+    }
+
+    /**
+     * Stores {@code object} with {@code apply()} and caches it, unless another edit may have
+     * overtaken it.
+     */
+    public void put(@NonNull String key, @NonNull T object) {
+        long startGeneration;
+        synchronized (this) {
+            startGeneration = generation;
+        }
+
+        prefs.edit()
+                .putString(key, serializer.serialize(object))
+                .apply();
+
+        synchronized (this) {
+            // this edit invalidates the cache once; any more is another edit in the meantime
+            if (generation == startGeneration + 1) {
+                cache.put(key, new CacheEntry<>(object, SystemClock.elapsedRealtime() + ttlMillis));
+            }
+        }
+    }
+
+    public void remove(@NonNull String key) {
+        prefs.edit()
+                .remove(key)
+                .apply();
+    }
+
+    public synchronized void invalidate(@NonNull Set<String> keys) {
+        generation++;
+        for (String key : keys) {
+            cache.remove(key);
+        }
+    }
+
+    public synchronized void invalidateAll() {
+        generation++;
+        cache.clear();
+    }
+
+    /**
+     * Stops watching the preferences and drops all the cached objects.
+     */
+    public void close() {
+        prefs.removeEditObserver(editObserver);
+        invalidateAll();
+    }
+
+    private static class CacheEntry<T> {
+
+        final T object;
+
+        final long expiresAt;
+
+        CacheEntry(T object, long expiresAt) {
+            this.object = object;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
@@ -5,15 +5,35 @@ import android.annotation.TargetApi;
 import android.content.Context;
 import android.content.SharedPreferences;
 import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.util.Base64;
 
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.IdentityHashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 import javax.crypto.Cipher;
 
@@ -28,6 +48,22 @@ public class EncryptedSharedPreferences implements SharedPreferences {
     @NonNull
     private static Charset CHARSET = Charset.forName("UTF-8");
 
+    /**
+     * The minimum number of values that {@link EncryptedEditor#putAll(java.util.Map)} gives to a
+     * worker thread; smaller maps are encrypted in the calling thread.
+     */
+    private static final int MIN_VALUES_PER_WORKER = 64;
+
+    private static final int SNAPSHOT_MAGIC = 0x45535053; // "ESPS"
+
+    private static final int SNAPSHOT_VERSION = 1;
+
+    private static final int SNAPSHOT_ENTRY = 1;
+
+    private static final int SNAPSHOT_END = 0;
+
+    private static final int SNAPSHOT_SALT_LENGTH = 16;
+
     /* package */
     @NonNull
     static String getDefaultPreferenceName(@NonNull Context context) {
@@ -44,8 +80,71 @@ public class EncryptedSharedPreferences implements SharedPreferences {
 
     private final Encryption encryption;
 
-    private final IdentityHashMap<OnSharedPreferenceChangeListener, OnSharedPreferenceChangeListener>
-            listenerWrappers = new IdentityHashMap<>();
+    private final CopyOnWriteArrayList<OnSharedPreferenceChangeListener> listeners = new CopyOnWriteArrayList<>();
+
+    private final List<BatchListenerEntry> batchListeners = new CopyOnWriteArrayList<>();
+
+    private final OnSharedPreferenceChangeListener baseListener = new OnSharedPreferenceChangeListener() {
+        @Override
+        public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key) {
+            dispatchChange(key);
+        }
+    };
+
+    private boolean baseListenerRegistered;
+
+    private final Set<String> pendingKeys = new LinkedHashSet<>();
+
+    private boolean flushScheduled;
+
+    private final Runnable flushPendingKeys = new Runnable() {
+        @Override
+        public void run() {
+            flushPendingKeys();
+        }
+    };
+
+    private Handler mainHandler;
+
+    private final CopyOnWriteArrayList<EditObserver> editObservers = new CopyOnWriteArrayList<>();
+
+    /**
+     * Serializes commits of editors and snapshots, so that a snapshot never sees a commit half done.
+     */
+    private final Object commitLock = new Object();
+
+    @NonNull
+    private volatile Set<String> deterministicKeys = Collections.emptySet();
+
+    /**
+     * The index of deterministically encrypted values to keys, or null if not built yet.
+     */
+    @Nullable
+    private Map<String, Set<String>> tokenToKeys;
+
+    @Nullable
+    private Map<String, String> keyToToken;
+
+    private final EditObserver valueIndexUpdater = new EditObserver() {
+        @Override
+        public void onEdit(@NonNull Set<String> keys, boolean cleared) {
+            synchronized (EncryptedSharedPreferences.this) {
+                if (tokenToKeys == null) {
+                    return;
+                }
+                if (cleared) {
+                    tokenToKeys = null;
+                    keyToToken = null;
+                    return;
+                }
+                for (String key : keys) {
+                    if (deterministicKeys.contains(key)) {
+                        updateValueIndex(key);
+                    }
+                }
+            }
+        }
+    };
 
     /**
      * Creates a default wrapper class for {@link android.content.Context}. The private key for
@@ -95,17 +194,21 @@ public class EncryptedSharedPreferences implements SharedPreferences {
 
 
     @NonNull
-    private String encodeKey(@NonNull String value) {
+    /* package */ static String encodeKey(@NonNull String value) {
         return Base64.encodeToString(value.getBytes(CHARSET), Base64.NO_WRAP);
     }
 
     @NonNull
-    private String decodeKey(@NonNull String value) {
+    /* package */ static String decodeKey(@NonNull String value) {
         return new String(Base64.decode(value.getBytes(CHARSET), Base64.NO_WRAP), CHARSET);
     }
 
     @NonNull
-    private String encodeValue(@NonNull String value) {
+    private String encodeValue(@NonNull Encryption encryption, @NonNull String key,
+            @NonNull String value) {
+        if (deterministicKeys.contains(key)) {
+            return encryption.encryptDeterministically(value);
+        }
         return encryption.encrypt(value);
     }
 
@@ -173,55 +276,478 @@ public class EncryptedSharedPreferences implements SharedPreferences {
         return base.contains(realKey);
     }
 
+    @NonNull
+    private static String toPlainText(@NonNull String key, @NonNull Object value) {
+        if (value instanceof String || value instanceof Integer || value instanceof Long
+                || value instanceof Float || value instanceof Boolean) {
+            return String.valueOf(value);
+        } else if (value instanceof Set) {
+            throw new UnsupportedOperationException();
+        } else {
+            throw new IllegalArgumentException("Unsupported value type for " + key + ": "
+                    + value.getClass().getName());
+        }
+    }
+
+    /**
+     * Encrypts {@code plainTexts} with the default executor, one {@link Encryption#copy()} per
+     * worker, or in the calling thread with {@code encryption} itself if there are too few values
+     * to split. Null elements are kept as null.
+     */
+    @NonNull
+    private String[] encodeValues(@NonNull final List<String> keys,
+            @NonNull final List<String> plainTexts) {
+        final String[] results = new String[plainTexts.size()];
+        int workers = Math.min(CryptoExecutors.getPoolSize(), plainTexts.size() / MIN_VALUES_PER_WORKER);
+        if (workers <= 1) {
+            for (int i = 0; i < results.length; i++) {
+                String plainText = plainTexts.get(i);
+                results[i] = plainText != null ? encodeValue(encryption, keys.get(i), plainText) : null;
+            }
+            return results;
+        }
+
+        ExecutorService executor = CryptoExecutors.getDefault();
+        List<Future<Void>> futures = new ArrayList<>(workers);
+        int chunkSize = (results.length + workers - 1) / workers;
+        for (int start = 0; start < results.length; start += chunkSize) {
+            final int from = start;
+            final int to = Math.min(start + chunkSize, results.length);
+            futures.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    Encryption worker = encryption.copy();
+                    for (int i = from; i < to; i++) {
+                        String plainText = plainTexts.get(i);
+                        results[i] = plainText != null ? encodeValue(worker, keys.get(i), plainText) : null;
+                    }
+                    return null;
+                }
+            }));
+        }
+
+        try {
+            for (Future<Void> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            for (Future<Void> future : futures) {
+                future.cancel(true);
+            }
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw encryption.new UnexpectedEncryptionStateException(e.getCause());
+        }
+        return results;
+    }
+
+    /**
+     * Writes the stored entries to {@code out} as they are, without decrypting them. The snapshot
+     * can be restored by {@link #importSnapshot(java.io.InputStream)} of an instance with the
+     * same private key and algorithm. The snapshot has an HMAC of a random salt under the private
+     * key to check the key on import, but no fingerprint of the key itself. {@code out} is flushed
+     * but not closed.
+     *
+     * @return The number of entries written
+     */
+    public int exportSnapshot(@NonNull OutputStream out) throws IOException {
+        Map<String, ?> entries;
+        synchronized (commitLock) {
+            entries = new HashMap<>(base.getAll());
+        }
+
+        byte[] salt = new byte[SNAPSHOT_SALT_LENGTH];
+        new SecureRandom().nextBytes(salt);
+        byte[] keyCheck = encryption.computeKeyCheck(salt);
+
+        DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out));
+        data.writeInt(SNAPSHOT_MAGIC);
+        data.writeShort(SNAPSHOT_VERSION);
+        data.write(salt);
+        data.writeByte(keyCheck.length);
+        data.write(keyCheck);
+        data.writeUTF(encryption.getAlgorithm());
+
+        int count = 0;
+        for (Map.Entry<String, ?> entry : entries.entrySet()) {
+            if (!(entry.getValue() instanceof String)) {
+                continue; // not written by EncryptedSharedPreferences
+            }
+            byte[] value = ((String) entry.getValue()).getBytes(CHARSET);
+            data.writeByte(SNAPSHOT_ENTRY);
+            data.writeUTF(entry.getKey());
+            data.writeInt(value.length);
+            data.write(value);
+            count++;
+        }
+        data.writeByte(SNAPSHOT_END);
+        data.flush();
+        return count;
+    }
+
+    /**
+     * Replaces all the stored entries with those in a snapshot written by
+     * {@link #exportSnapshot(java.io.OutputStream)}, without decrypting or encrypting them, and
+     * commits the change. Edit observers see it as a clear. Exactly the bytes of the snapshot are
+     * read from {@code in}, which is not closed.
+     *
+     * @return The number of entries restored
+     * @throws java.io.IOException if the snapshot is broken or made with another private key or algorithm.
+     */
+    public int importSnapshot(@NonNull InputStream in) throws IOException {
+        // not buffered, so as not to read beyond the end of the snapshot
+        DataInputStream data = new DataInputStream(in);
+        if (data.readInt() != SNAPSHOT_MAGIC) {
+            throw new IOException("Not a snapshot of EncryptedSharedPreferences");
+        }
+        int version = data.readUnsignedShort();
+        if (version != SNAPSHOT_VERSION) {
+            throw new IOException("Unsupported snapshot version: " + version);
+        }
+        byte[] salt = new byte[SNAPSHOT_SALT_LENGTH];
+        data.readFully(salt);
+        byte[] keyCheck = new byte[data.readUnsignedByte()];
+        data.readFully(keyCheck);
+        if (!MessageDigest.isEqual(keyCheck, encryption.computeKeyCheck(salt))) {
+            throw new IOException("The snapshot is made with a different private key");
+        }
+        String algorithm = data.readUTF();
+        if (!algorithm.equals(encryption.getAlgorithm())) {
+            throw new IOException("The snapshot is made with a different algorithm."
+                    + " Expected=" + encryption.getAlgorithm() + " but got=" + algorithm);
+        }
+
+        Editor editor = base.edit();
+        editor.clear();
+        int count = 0;
+        int tag;
+        while ((tag = data.readUnsignedByte()) == SNAPSHOT_ENTRY) {
+            String key = data.readUTF();
+            int length = data.readInt();
+            if (length < 0) {
+                throw new IOException("Invalid value length: " + length);
+            }
+            byte[] value = new byte[length];
+            data.readFully(value);
+            editor.putString(key, new String(value, CHARSET));
+            count++;
+        }
+        if (tag != SNAPSHOT_END) {
+            throw new IOException("Unexpected tag in snapshot: " + tag);
+        }
+        synchronized (commitLock) {
+            if (!editor.commit()) {
+                throw new IOException("Failed to commit the snapshot");
+            }
+            notifyEditObservers(Collections.<String>emptySet(), true);
+        }
+        return count;
+    }
+
     @SuppressLint("CommitPrefEdits")
     @Override
-    public Editor edit() {
+    public EncryptedEditor edit() {
         return new EncryptedEditor(base.edit());
     }
 
     @Override
     public void registerOnSharedPreferenceChangeListener(
-            @NonNull final OnSharedPreferenceChangeListener listener) {
-        OnSharedPreferenceChangeListener wrapper = new OnSharedPreferenceChangeListener() {
-            @Override
-            public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key) {
-                listener.onSharedPreferenceChanged(EncryptedSharedPreferences.this, decodeKey(key));
-            }
-        };
-        listenerWrappers.put(listener, wrapper);
-        base.registerOnSharedPreferenceChangeListener(wrapper);
+            @NonNull OnSharedPreferenceChangeListener listener) {
+        listeners.addIfAbsent(listener);
+        updateBaseListener();
     }
 
     @Override
     public void unregisterOnSharedPreferenceChangeListener(
             @NonNull OnSharedPreferenceChangeListener listener) {
-        OnSharedPreferenceChangeListener wrapper = listenerWrappers.get(listener);
-        if (wrapper != null) {
-            listenerWrappers.remove(listener);
-            base.unregisterOnSharedPreferenceChangeListener(wrapper);
+        listeners.remove(listener);
+        updateBaseListener();
+    }
+
+    /**
+     * Registers a listener called with all the changed keys, on the main thread.
+     *
+     * @see #registerOnSharedPreferencesBatchChangeListener(OnSharedPreferencesBatchChangeListener, java.util.concurrent.Executor)
+     */
+    public void registerOnSharedPreferencesBatchChangeListener(
+            @NonNull OnSharedPreferencesBatchChangeListener listener) {
+        registerOnSharedPreferencesBatchChangeListener(listener, null);
+    }
+
+    /**
+     * Registers a listener called at least once per batch of commits with all the keys they
+     * changed. Consecutive commits made before the listener runs are merged into one call, so
+     * a call does not necessarily correspond to a single commit.
+     *
+     * @param executor - an executor to call the listener on, or null to call it on the main thread
+     */
+    public void registerOnSharedPreferencesBatchChangeListener(
+            @NonNull OnSharedPreferencesBatchChangeListener listener, @Nullable Executor executor) {
+        unregisterOnSharedPreferencesBatchChangeListener(listener);
+        batchListeners.add(new BatchListenerEntry(listener, executor));
+        updateBaseListener();
+    }
+
+    public void unregisterOnSharedPreferencesBatchChangeListener(
+            @NonNull OnSharedPreferencesBatchChangeListener listener) {
+        for (BatchListenerEntry entry : batchListeners) {
+            if (entry.listener == listener) {
+                batchListeners.remove(entry);
+            }
+        }
+        updateBaseListener();
+    }
+
+    /**
+     * Makes values of {@code keys} encrypted deterministically, so that they can be looked up by
+     * {@link #findKeysByValue(String)}. Note that deterministic encryption reveals which of these
+     * values are equal to each other. Values stored before this call are not found until they are
+     * put again.
+     *
+     * @see Encryption#encryptDeterministically(String)
+     */
+    public synchronized void enableDeterministicEncryption(@NonNull String... keys) {
+        Set<String> newKeys = new HashSet<>(deterministicKeys);
+        Collections.addAll(newKeys, keys);
+        deterministicKeys = Collections.unmodifiableSet(newKeys);
+        tokenToKeys = null; // rebuilt on demand
+        addEditObserver(valueIndexUpdater);
+    }
+
+    /**
+     * Finds keys whose values equal to {@code value}, among those enabled by
+     * {@link #enableDeterministicEncryption(String...)}, without decrypting any value.
+     * The index is built on the first call and then kept up to date by editors of this instance.
+     */
+    @NonNull
+    public synchronized Set<String> findKeysByValue(@NonNull String value) {
+        if (deterministicKeys.isEmpty()) {
+            return Collections.emptySet();
+        }
+        if (tokenToKeys == null) {
+            tokenToKeys = new HashMap<>();
+            keyToToken = new HashMap<>();
+            for (String key : deterministicKeys) {
+                updateValueIndex(key);
+            }
+        }
+        Set<String> keys = tokenToKeys.get(encryption.encryptDeterministically(value));
+        return keys != null ? Collections.unmodifiableSet(new HashSet<>(keys)) : Collections.<String>emptySet();
+    }
+
+    private void updateValueIndex(@NonNull String key) {
+        String oldToken = keyToToken.remove(key);
+        if (oldToken != null) {
+            Set<String> keys = tokenToKeys.get(oldToken);
+            keys.remove(key);
+            if (keys.isEmpty()) {
+                tokenToKeys.remove(oldToken);
+            }
+        }
+
+        String token = base.getString(encodeKey(key), null);
+        if (token != null) {
+            keyToToken.put(key, token);
+            Set<String> keys = tokenToKeys.get(token);
+            if (keys == null) {
+                keys = new HashSet<>();
+                tokenToKeys.put(token, keys);
+            }
+            keys.add(key);
+        }
+    }
+
+    /* package */ void addEditObserver(@NonNull EditObserver observer) {
+        editObservers.addIfAbsent(observer);
+    }
+
+    /* package */ void removeEditObserver(@NonNull EditObserver observer) {
+        editObservers.remove(observer);
+    }
+
+    private void notifyEditObservers(@NonNull Set<String> keys, boolean cleared) {
+        for (EditObserver observer : editObservers) {
+            observer.onEdit(keys, cleared);
+        }
+    }
+
+    private void updateBaseListener() {
+        synchronized (baseListener) {
+            boolean needed = !listeners.isEmpty() || !batchListeners.isEmpty();
+            if (needed && !baseListenerRegistered) {
+                base.registerOnSharedPreferenceChangeListener(baseListener);
+                baseListenerRegistered = true;
+            } else if (!needed && baseListenerRegistered) {
+                base.unregisterOnSharedPreferenceChangeListener(baseListener);
+                baseListenerRegistered = false;
+            }
+        }
+    }
+
+    /**
+     * Called for each key changed in the base, in the main thread. The base notifies all the keys
+     * of a commit in a row, so flushing in the next message of the main looper makes a batch.
+     */
+    private void dispatchChange(@Nullable String encodedKey) {
+        String key = encodedKey != null ? decodeKey(encodedKey) : null;
+
+        for (OnSharedPreferenceChangeListener listener : listeners) {
+            listener.onSharedPreferenceChanged(this, key);
+        }
+
+        if (!batchListeners.isEmpty()) {
+            synchronized (pendingKeys) {
+                pendingKeys.add(key);
+                if (!flushScheduled) {
+                    flushScheduled = true;
+                    getMainHandler().post(flushPendingKeys);
+                }
+            }
+        }
+    }
+
+    @NonNull
+    private synchronized Handler getMainHandler() {
+        if (mainHandler == null) {
+            mainHandler = new Handler(Looper.getMainLooper());
+        }
+        return mainHandler;
+    }
+
+    private void flushPendingKeys() {
+        final Set<String> keys;
+        synchronized (pendingKeys) {
+            keys = Collections.unmodifiableSet(new LinkedHashSet<>(pendingKeys));
+            pendingKeys.clear();
+            flushScheduled = false;
+        }
+
+        for (final BatchListenerEntry entry : batchListeners) {
+            if (entry.executor == null) {
+                entry.listener.onSharedPreferencesChanged(this, keys);
+            } else {
+                entry.executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        entry.listener.onSharedPreferencesChanged(EncryptedSharedPreferences.this, keys);
+                    }
+                });
+            }
         }
     }
 
     @Override
     protected void finalize() throws Throwable {
-        for (OnSharedPreferenceChangeListener w : listenerWrappers.values()) {
-            base.unregisterOnSharedPreferenceChangeListener(w);
+        if (baseListenerRegistered) {
+            base.unregisterOnSharedPreferenceChangeListener(baseListener);
         }
         super.finalize();
     }
 
-    private class EncryptedEditor implements Editor {
+    /**
+     * A listener that receives all the keys changed by a batch of consecutive commits at once.
+     *
+     * @see #registerOnSharedPreferencesBatchChangeListener(OnSharedPreferencesBatchChangeListener, java.util.concurrent.Executor)
+     */
+    public interface OnSharedPreferencesBatchChangeListener {
+
+        /**
+         * @param keys - the changed keys, already decoded; may contain null if the store is cleared
+         */
+        void onSharedPreferencesChanged(@NonNull SharedPreferences sharedPreferences,
+                @NonNull Set<String> keys);
+    }
+
+    /**
+     * Called synchronously in the thread of {@code commit()} or {@code apply()}, after the
+     * in-memory state of the base is updated.
+     */
+    /* package */ interface EditObserver {
+
+        /**
+         * @param keys    - the keys put or removed by the editor, not encoded
+         * @param cleared - true if {@code clear()} is called on the editor
+         */
+        void onEdit(@NonNull Set<String> keys, boolean cleared);
+    }
+
+    private static class BatchListenerEntry {
+
+        final OnSharedPreferencesBatchChangeListener listener;
+
+        @Nullable
+        final Executor executor;
+
+        BatchListenerEntry(@NonNull OnSharedPreferencesBatchChangeListener listener,
+                @Nullable Executor executor) {
+            this.listener = listener;
+            this.executor = executor;
+        }
+    }
+
+    /**
+     * An {@link android.content.SharedPreferences.Editor} that encrypts values.
+     */
+    public class EncryptedEditor implements Editor {
 
         private final Editor editor;
 
+        private final Set<String> changedKeys = new HashSet<>();
+
+        private boolean cleared;
+
         private EncryptedEditor(@NonNull Editor editor) {
             this.editor = editor;
         }
 
+        /**
+         * Notifies the edits since the last commit and forgets them, even if there are no observers,
+         * so that a reused editor reports only its new edits.
+         */
+        private void notifyEditObservers() {
+            if (!editObservers.isEmpty()) {
+                EncryptedSharedPreferences.this.notifyEditObservers(
+                        Collections.unmodifiableSet(new HashSet<>(changedKeys)), cleared);
+            }
+            changedKeys.clear();
+            cleared = false;
+        }
+
         @Override
         public synchronized Editor putString(@NonNull String key, @Nullable String value) {
+            changedKeys.add(key);
             String realKey = encodeKey(key);
-            editor.putString(realKey, value != null ? encodeValue(value) : null);
+            editor.putString(realKey, value != null ? encodeValue(encryption, key, value) : null);
+            return this;
+        }
+
+        /**
+         * Puts all the entries of {@code values} at once. Values are encrypted in parallel when
+         * there are many of them, so this is much faster than calling {@code putString()}
+         * for each entry. Supported value types are the same as {@code getAll()} returns;
+         * a null value removes the entry.
+         */
+        public EncryptedEditor putAll(@NonNull Map<String, ?> values) {
+            List<String> keys = new ArrayList<>(values.size());
+            List<String> plainTexts = new ArrayList<>(values.size());
+            for (Map.Entry<String, ?> entry : values.entrySet()) {
+                keys.add(entry.getKey());
+                Object value = entry.getValue();
+                plainTexts.add(value != null ? toPlainText(entry.getKey(), value) : null);
+            }
+
+            String[] encrypted = encodeValues(keys, plainTexts);
+
+            synchronized (this) {
+                changedKeys.addAll(keys);
+                for (int i = 0; i < encrypted.length; i++) {
+                    editor.putString(encodeKey(keys.get(i)), encrypted[i]);
+                }
+            }
             return this;
         }
 
@@ -253,6 +779,7 @@ public class EncryptedSharedPreferences implements SharedPreferences {
 
         @Override
         public synchronized Editor remove(String key) {
+            changedKeys.add(key);
             String realKey = encodeKey(key);
             editor.remove(realKey);
             return this;
@@ -260,18 +787,26 @@ public class EncryptedSharedPreferences implements SharedPreferences {
 
         @Override
         public synchronized Editor clear() {
+            cleared = true;
             editor.clear();
             return this;
         }
 
         @Override
         public synchronized boolean commit() {
-            return editor.commit();
+            synchronized (commitLock) {
+                boolean result = editor.commit();
+                notifyEditObservers();
+                return result;
+            }
         }
 
         @Override
         public synchronized void apply() {
-            editor.apply();
+            synchronized (commitLock) {
+                editor.apply();
+                notifyEditObservers();
+            }
         }
     }
 }
@@ -7,15 +7,28 @@ import android.content.Context;
 import android.os.Build;
 import android.provider.Settings;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 import android.util.Base64;
 
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharacterCodingException;
 import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.security.GeneralSecurityException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.NoSuchProviderException;
+import java.security.spec.AlgorithmParameterSpec;
+import java.util.Arrays;
+import java.util.Locale;
 
 import javax.crypto.Cipher;
+import javax.crypto.Mac;
 import javax.crypto.NoSuchPaddingException;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
 import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
 
@@ -45,6 +58,33 @@ public class Encryption {
 
     public static final int KEY_LENGTH = 128 / 8;
 
+    private static final int IV_LENGTH = KEY_LENGTH;
+
+    private static final int GCM_TAG_LENGTH = 128;
+
+    /**
+     * Starts and terminates flags in encrypted strings; not a Base64 character.
+     */
+    private static final char ENVELOPE_MARKER = '$';
+
+    private static final char FLAG_VALUE_CODEC = 'c';
+
+    private static final char FLAG_GCM = 'g';
+
+    private static final int ENVELOPE_VALUE_CODEC = 0x01;
+
+    private static final int ENVELOPE_GCM = 0x02;
+
+    private static final String GCM_ALGORITHM_MODE = "AES/GCM/NoPadding";
+
+    private static final int KEY_ID_LENGTH = 8;
+
+    private static final int SCRATCH_BUFFER_SIZE = 256;
+
+    private static final String SYNTHETIC_IV_MAC = "HmacSHA256";
+
+    private static final String KEY_CHECK_MAC = "HmacSHA256";
+
     /**
      * @return A {@link javax.crypto.Cipher} instance with "AES/CBC/PKC5Padding" transformation.
      */
@@ -81,9 +121,20 @@ public class Encryption {
         for (int i = 0; i < androidId.length; i++) {
             packageDigest[i] ^= androidId[i];
         }
+        Arrays.fill(androidId, (byte) 0);
         return packageDigest; // mix of androidId and packageDigest
     }
 
+    @NonNull
+    private static String toHexString(@NonNull byte[] bytes, int length) {
+        StringBuilder sb = new StringBuilder(length * 2);
+        for (int i = 0; i < length; i++) {
+            sb.append(Character.forDigit((bytes[i] >> 4) & 0x0F, 16));
+            sb.append(Character.forDigit(bytes[i] & 0x0F, 16));
+        }
+        return sb.toString();
+    }
+
     private static byte[] md5(byte[] value) {
         MessageDigest md5;
         try {
@@ -104,22 +155,66 @@ public class Encryption {
             throw new IllegalArgumentException("private key is too long."
                     + " Expected=" + KEY_LENGTH + " but got=" + privateKey.length);
         }
-        return new SecretKeySpec(privateKey, cipher.getAlgorithm());
+        return new SecretKeySpec(privateKey, getKeyAlgorithm(cipher));
     }
 
+    /**
+     * @return The algorithm part of the cipher's transformation, e.g. "AES" for "AES/CBC/PKCS5Padding",
+     * which some providers require as the key algorithm.
+     */
+    @NonNull
+    private static String getKeyAlgorithm(@NonNull Cipher cipher) {
+        String transformation = cipher.getAlgorithm();
+        int slash = transformation.indexOf('/');
+        return slash >= 0 ? transformation.substring(0, slash) : transformation;
+    }
+
+    @NonNull
+    private static SecretKeySpec createKeySpec(@NonNull Cipher cipher, @NonNull String privateKey) {
+        byte[] bytes = privateKey.getBytes(CHARSET);
+        try {
+            return createKeySpec(cipher, bytes);
+        } finally {
+            Arrays.fill(bytes, (byte) 0); // SecretKeySpec has its own copy
+        }
+    }
 
-    private final SecretKeySpec secretKeySpec;
+
+    @Nullable
+    private final KeyProvider keyProvider;
+
+    @Nullable
+    private SecretKey secretKey;
 
     private final Cipher cipher;
 
+    private final boolean gcm;
+
+    private final byte[] iv = new byte[IV_LENGTH];
+
+    @NonNull
+    private NonceSource nonceSource = BufferedNonceSource.getInstance();
+
+    @Nullable
+    private ValueCodec valueCodec;
+
+    @Nullable
+    private SecretBuffer scratchBuffer;
+
+    @Nullable
+    private Mac syntheticIvMac;
+
+    @Nullable
+    private Cipher alternateCipher;
+
     @Deprecated
     public Encryption(@NonNull Context context) {
-        this(getLegacyDefaultCipher(), getDefaultPrivateKey(context));
+        this(getLegacyDefaultCipher(), DefaultKeyProvider.getInstance(context));
     }
 
     @Deprecated
     public Encryption(@NonNull String privateKey) {
-        this(getLegacyDefaultCipher(), privateKey.getBytes(CHARSET));
+        this(getLegacyDefaultCipher(), privateKey);
     }
 
     @Deprecated
@@ -128,11 +223,11 @@ public class Encryption {
     }
 
     public Encryption(@NonNull Cipher cipher, @NonNull Context context) {
-        this(cipher, getDefaultPrivateKey(context));
+        this(cipher, DefaultKeyProvider.getInstance(context));
     }
 
     public Encryption(@NonNull Cipher cipher, @NonNull String privateKey) {
-        this(cipher, privateKey.getBytes(CHARSET));
+        this(cipher, createKeySpec(cipher, privateKey));
     }
 
     public Encryption(@NonNull Cipher cipher, @NonNull byte[] privateKey) {
@@ -140,41 +235,509 @@ public class Encryption {
     }
 
     public Encryption(@NonNull Cipher cipher, @NonNull SecretKeySpec secretKeySpec) {
+        this(cipher, null, secretKeySpec);
+    }
+
+    /**
+     * Creates an instance whose private key is resolved by {@code keyProvider} on the first use.
+     */
+    public Encryption(@NonNull Cipher cipher, @NonNull KeyProvider keyProvider) {
+        this(cipher, keyProvider, null);
+    }
+
+    private Encryption(@NonNull Cipher cipher, @Nullable KeyProvider keyProvider,
+            @Nullable SecretKey secretKey) {
         this.cipher = cipher;
-        this.secretKeySpec = secretKeySpec;
+        this.keyProvider = keyProvider;
+        this.secretKey = secretKey;
+        this.gcm = cipher.getAlgorithm().toUpperCase(Locale.US).contains("/GCM/");
+        if (gcm && !isGcmSupported()) {
+            // neither GCMParameterSpec nor Cipher#updateAAD() is available
+            throw new IllegalArgumentException("AES-GCM requires API level 19: " + cipher.getAlgorithm());
+        }
+    }
+
+    private static boolean isGcmSupported() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT;
+    }
+
+    /**
+     * Creates a new instance that shares the key and settings with this one but has its own
+     * {@link javax.crypto.Cipher}, so that it can be used by another thread.
+     */
+    @NonNull
+    public Encryption copy() {
+        Cipher newCipher;
+        try {
+            newCipher = Cipher.getInstance(cipher.getAlgorithm(), cipher.getProvider());
+        } catch (NoSuchAlgorithmException | NoSuchPaddingException e) {
+            throw new AssertionError(e);
+        }
+        Encryption encryption = new Encryption(newCipher, keyProvider, secretKey);
+        encryption.nonceSource = nonceSource;
+        encryption.valueCodec = valueCodec;
+        return encryption;
+    }
+
+    /**
+     * Sets a {@link com.github.gfx.util.encrypt.ValueCodec} applied to plain texts before encryption,
+     * e.g. {@link com.github.gfx.util.encrypt.DeflateValueCodec}. Values encrypted with a codec are
+     * flagged so that this instance can still decrypt values encrypted without it, but decrypting
+     * them requires the same codec.
+     */
+    public void setValueCodec(@Nullable ValueCodec valueCodec) {
+        this.valueCodec = valueCodec;
+    }
+
+    @Nullable
+    public ValueCodec getValueCodec() {
+        return valueCodec;
+    }
+
+    /**
+     * @return The transformation of the cipher, e.g. "AES/CBC/PKCS5Padding".
+     */
+    @NonNull
+    public String getAlgorithm() {
+        return cipher.getAlgorithm();
+    }
+
+    @NonNull
+    private SecretKey getSecretKey() {
+        if (secretKey == null) {
+            assert keyProvider != null;
+            secretKey = keyProvider.getKey();
+        }
+        return secretKey;
+    }
+
+    /**
+     * @return A short fingerprint of the private key, which tells whether two instances use the
+     * same key without revealing the key itself.
+     * @throws java.lang.UnsupportedOperationException if the key cannot be exported, e.g. one in
+     *                                                 {@code "AndroidKeyStore"}.
+     */
+    @NonNull
+    public String getKeyId() {
+        byte[] encoded = getSecretKey().getEncoded();
+        if (encoded == null) {
+            throw new UnsupportedOperationException("The private key is not exportable");
+        }
+        MessageDigest sha256;
+        try {
+            sha256 = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError(e);
+        }
+        sha256.update("EncryptUtils key id".getBytes(CHARSET));
+        byte[] digest = sha256.digest(encoded);
+        return toHexString(digest, KEY_ID_LENGTH);
+    }
+
+    /**
+     * @return An HMAC of {@code salt} under the private key, which tells whether data was made with
+     * the same key. Unlike {@link #getKeyId()}, it is bound to {@code salt}, so values with
+     * different salts cannot be linked to each other or to the key.
+     * @throws java.lang.UnsupportedOperationException if the key cannot be exported
+     */
+    @NonNull
+    /* package */ byte[] computeKeyCheck(@NonNull byte[] salt) {
+        byte[] encoded = getSecretKey().getEncoded();
+        if (encoded == null) {
+            throw new UnsupportedOperationException("The private key is not exportable");
+        }
+        try {
+            Mac mac = Mac.getInstance(KEY_CHECK_MAC);
+            mac.init(new SecretKeySpec(encoded, KEY_CHECK_MAC));
+            mac.update("EncryptUtils key check".getBytes(CHARSET));
+            return mac.doFinal(salt);
+        } catch (GeneralSecurityException e) {
+            throw new UnexpectedEncryptionStateException(e);
+        } finally {
+            Arrays.fill(encoded, (byte) 0);
+        }
+    }
+
+    /**
+     * Sets the source of IVs. The default is {@link BufferedNonceSource#getInstance()}.
+     * Use {@link com.github.gfx.util.encrypt.CounterNonceSource} only with AES-GCM.
+     */
+    public void setNonceSource(@NonNull NonceSource nonceSource) {
+        this.nonceSource = nonceSource;
+    }
+
+    @NonNull
+    public NonceSource getNonceSource() {
+        return nonceSource;
+    }
+
+    @NonNull
+    @TargetApi(Build.VERSION_CODES.KITKAT)
+    private AlgorithmParameterSpec createParameterSpec(@NonNull byte[] buffer, int offset) {
+        return createParameterSpec(gcm, buffer, offset);
+    }
+
+    @NonNull
+    @TargetApi(Build.VERSION_CODES.KITKAT)
+    private static AlgorithmParameterSpec createParameterSpec(boolean gcm, @NonNull byte[] buffer,
+            int offset) {
+        if (gcm && isGcmSupported()) {
+            return new GCMParameterSpec(GCM_TAG_LENGTH, buffer, offset, IV_LENGTH);
+        } else {
+            return new IvParameterSpec(buffer, offset, IV_LENGTH);
+        }
+    }
+
+    /**
+     * @return The maximum length of {@code IV || ciphertext} for a plain text of {@code length} bytes.
+     */
+    /* package */ static int getMaxEncryptedLength(int length) {
+        return IV_LENGTH + length + KEY_LENGTH; // padding or GCM tag
+    }
+
+    /**
+     * Encrypts bytes into {@code output} as {@code IV || ciphertext}, without any value codec.
+     *
+     * @param aad - additional authenticated data, used only in GCM
+     * @return The number of bytes written
+     */
+    @TargetApi(Build.VERSION_CODES.KITKAT)
+    /* package */ int encryptBytes(@NonNull byte[] input, int offset, int length,
+            @NonNull byte[] output, int outputOffset, @Nullable byte[] aad) {
+        try {
+            nonceSource.nextNonce(output, outputOffset, IV_LENGTH);
+            cipher.init(Cipher.ENCRYPT_MODE, getSecretKey(), createParameterSpec(output, outputOffset));
+            if (aad != null && gcm && isGcmSupported()) {
+                cipher.updateAAD(aad);
+            }
+            return IV_LENGTH + cipher.doFinal(input, offset, length, output, outputOffset + IV_LENGTH);
+        } catch (Exception e) {
+            throw new UnexpectedEncryptionStateException(e);
+        }
+    }
+
+    /**
+     * Decrypts {@code IV || ciphertext} made by {@link #encryptBytes(byte[], int, int, byte[], int, byte[])}.
+     *
+     * @return The number of bytes written
+     */
+    @TargetApi(Build.VERSION_CODES.KITKAT)
+    /* package */ int decryptBytes(@NonNull byte[] input, int offset, int length,
+            @NonNull byte[] output, int outputOffset, @Nullable byte[] aad) {
+        try {
+            cipher.init(Cipher.DECRYPT_MODE, getSecretKey(), createParameterSpec(input, offset));
+            if (aad != null && gcm && isGcmSupported()) {
+                cipher.updateAAD(aad);
+            }
+            return cipher.doFinal(input, offset + IV_LENGTH, length - IV_LENGTH, output, outputOffset);
+        } catch (Exception e) {
+            throw new UnexpectedDecryptionStateException(e);
+        }
     }
 
     @NonNull
     public String encrypt(@NonNull String plainText) {
-        byte[] encrypted;
+        byte[] input = plainText.getBytes(CHARSET);
+        try {
+            return encryptToEnvelope(input, 0, input.length);
+        } finally {
+            Arrays.fill(input, (byte) 0);
+        }
+    }
 
+    /**
+     * Encrypts the remaining bytes of {@code plainText}, e.g. {@link SecretBuffer#buffer()},
+     * and advances its position to the limit. The bytes are copied into a heap array that is
+     * zeroed after use; note that the {@link javax.crypto.Cipher} provider may make copies of
+     * its own, which this class cannot wipe.
+     */
+    @NonNull
+    public String encrypt(@NonNull ByteBuffer plainText) {
+        byte[] input = new byte[plainText.remaining()];
         try {
-            cipher.init(Cipher.ENCRYPT_MODE, secretKeySpec);
-            encrypted = cipher.doFinal(plainText.getBytes(CHARSET));
+            plainText.get(input);
+            return encryptToEnvelope(input, 0, input.length);
+        } finally {
+            Arrays.fill(input, (byte) 0);
+        }
+    }
+
+    /**
+     * Encrypts {@code plainText} without making a {@link String} of it. {@code plainText} is
+     * not modified; wipe it by yourself.
+     */
+    @NonNull
+    public String encrypt(@NonNull char[] plainText) {
+        SecretBuffer input = getScratchBuffer(plainText.length * 4);
+        try {
+            CharsetEncoder encoder = CHARSET.newEncoder();
+            CoderResult result = encoder.encode(CharBuffer.wrap(plainText), input.buffer(), true);
+            if (!result.isUnderflow()) {
+                result.throwException();
+            }
+            encoder.flush(input.buffer());
+            input.buffer().flip();
+            return encrypt(input.buffer());
+        } catch (CharacterCodingException e) {
+            throw new UnexpectedEncryptionStateException(e);
+        } finally {
+            input.wipe();
+        }
+    }
+
+    @NonNull
+    private String encryptToEnvelope(@NonNull byte[] input, int offset, int length) {
+        return encryptToEnvelope(input, offset, length, false);
+    }
+
+    /**
+     * @param deterministic - derives the IV from the input instead of {@link NonceSource}; always
+     *                      in CBC, because a GCM nonce must never be reused for the same key
+     */
+    @NonNull
+    private String encryptToEnvelope(@NonNull byte[] input, int offset, int length,
+            boolean deterministic) {
+        boolean gcmEnvelope = gcm && !deterministic;
+        String flags = gcmEnvelope ? String.valueOf(FLAG_GCM) : "";
+        byte[] encoded = null;
+        byte[] buffer;
+        int encryptedLength;
+
+        try {
+            if (valueCodec != null) {
+                encoded = valueCodec.encode(offset == 0 && length == input.length
+                        ? input : Arrays.copyOfRange(input, offset, offset + length));
+                input = encoded;
+                offset = 0;
+                length = encoded.length;
+                flags += FLAG_VALUE_CODEC;
+            }
+            if (deterministic) {
+                Mac mac = getSyntheticIvMac();
+                mac.update(input, offset, length);
+                System.arraycopy(mac.doFinal(), 0, iv, 0, IV_LENGTH);
+            } else {
+                nonceSource.nextNonce(iv, 0, IV_LENGTH);
+            }
+            Cipher c = getCipherFor(gcmEnvelope);
+            c.init(Cipher.ENCRYPT_MODE, getSecretKey(), createParameterSpec(gcmEnvelope, iv, 0));
+            buffer = new byte[IV_LENGTH + c.getOutputSize(length)];
+            System.arraycopy(iv, 0, buffer, 0, IV_LENGTH);
+            encryptedLength = IV_LENGTH + c.doFinal(input, offset, length, buffer, IV_LENGTH);
         } catch (Exception e) {
             throw new UnexpectedEncryptionStateException(e);
+        } finally {
+            if (encoded != null) {
+                Arrays.fill(encoded, (byte) 0);
+            }
         }
-        byte[] iv = cipher.getIV();
+        return encodeEnvelope(flags, buffer, encryptedLength);
+    }
 
-        byte[] buffer = new byte[iv.length + encrypted.length];
-        System.arraycopy(iv, 0, buffer, 0, iv.length);
-        System.arraycopy(encrypted, 0, buffer, iv.length, encrypted.length);
-        return Base64.encodeToString(buffer, Base64.NO_WRAP);
+    /**
+     * Encrypts {@code plainText} so that the same plain text always makes the same output, in the
+     * manner of SIV: the IV is an HMAC-SHA256 of the plain text with a key derived from the private
+     * key. The output can be compared for equality without decryption, which also means it tells
+     * whether two values are equal; use it only for values that need equality lookups.
+     * It always uses AES/CBC, even if the cipher of this instance is AES-GCM, whose security breaks
+     * down if an IV is reused. The output is decrypted by {@link #decrypt(String)}.
+     *
+     * @throws java.lang.UnsupportedOperationException if the private key cannot be exported
+     */
+    @NonNull
+    public String encryptDeterministically(@NonNull String plainText) {
+        try {
+            getSyntheticIvMac();
+        } catch (GeneralSecurityException e) {
+            throw new UnexpectedEncryptionStateException(e);
+        }
+        byte[] input = plainText.getBytes(CHARSET);
+        try {
+            return encryptToEnvelope(input, 0, input.length, true);
+        } finally {
+            Arrays.fill(input, (byte) 0);
+        }
+    }
+
+    @NonNull
+    private Mac getSyntheticIvMac() throws GeneralSecurityException {
+        if (syntheticIvMac == null) {
+            byte[] encoded = getSecretKey().getEncoded();
+            if (encoded == null) {
+                throw new UnsupportedOperationException("The private key is not exportable");
+            }
+            Mac mac = Mac.getInstance(SYNTHETIC_IV_MAC);
+            mac.init(new SecretKeySpec(encoded, SYNTHETIC_IV_MAC));
+            byte[] macKey = mac.doFinal("EncryptUtils synthetic IV".getBytes(CHARSET));
+            mac.init(new SecretKeySpec(macKey, SYNTHETIC_IV_MAC));
+            Arrays.fill(encoded, (byte) 0);
+            Arrays.fill(macKey, (byte) 0);
+            syntheticIvMac = mac;
+        }
+        return syntheticIvMac;
     }
 
     @NonNull
     public String decrypt(@NonNull String encrypted) {
-        byte[] buffer = Base64.decode(encrypted.getBytes(CHARSET), Base64.NO_WRAP);
+        byte[] decrypted = decryptFromEnvelope(encrypted);
+        try {
+            return new String(decrypted, CHARSET);
+        } finally {
+            Arrays.fill(decrypted, (byte) 0);
+        }
+    }
+
+    /**
+     * Decrypts {@code encrypted} into {@code out}, which is wiped first and grown if needed.
+     * On return, {@code out.buffer()} is ready to read the plain text. The plain text passes
+     * through a heap array that is zeroed after use; as with {@link #encrypt(ByteBuffer)},
+     * copies made by the {@link javax.crypto.Cipher} provider are out of reach of this class.
+     */
+    public void decrypt(@NonNull String encrypted, @NonNull SecretBuffer out) {
+        out.wipe();
+        byte[] decrypted = decryptFromEnvelope(encrypted);
+        try {
+            out.ensureCapacity(decrypted.length);
+            out.buffer().put(decrypted);
+        } finally {
+            Arrays.fill(decrypted, (byte) 0);
+        }
+        out.buffer().flip();
+    }
+
+    /**
+     * Decrypts {@code encrypted} without making a {@link String} of it. Wipe the result by
+     * yourself with {@link java.util.Arrays#fill(char[], char)}.
+     */
+    @NonNull
+    public char[] decryptToChars(@NonNull String encrypted) {
+        SecretBuffer decrypted = getScratchBuffer(encrypted.length());
+        try {
+            decrypt(encrypted, decrypted);
+            CharBuffer chars = CHARSET.newDecoder().decode(decrypted.buffer());
+            try {
+                return Arrays.copyOfRange(chars.array(), chars.arrayOffset(),
+                        chars.arrayOffset() + chars.remaining());
+            } finally {
+                Arrays.fill(chars.array(), '\0');
+            }
+        } catch (CharacterCodingException e) {
+            throw new UnexpectedDecryptionStateException(e);
+        } finally {
+            decrypted.wipe();
+        }
+    }
+
+    @NonNull
+    private byte[] decryptFromEnvelope(@NonNull String encrypted) {
+        int flagsEnd = findFlagsEnd(encrypted);
+        int envelope = parseFlags(encrypted, flagsEnd);
+        byte[] buffer = Base64.decode(encrypted.substring(flagsEnd + 1), Base64.NO_WRAP);
         byte[] decrypted;
 
         try {
-            cipher.init(Cipher.DECRYPT_MODE, secretKeySpec,
-                    new IvParameterSpec(buffer, 0, KEY_LENGTH));
-            decrypted = cipher.doFinal(buffer, KEY_LENGTH, buffer.length - KEY_LENGTH);
+            boolean gcmEnvelope = (envelope & ENVELOPE_GCM) != 0;
+            Cipher c = getCipherFor(gcmEnvelope);
+            c.init(Cipher.DECRYPT_MODE, getSecretKey(), createParameterSpec(gcmEnvelope, buffer, 0));
+            decrypted = c.doFinal(buffer, IV_LENGTH, buffer.length - IV_LENGTH);
+            if ((envelope & ENVELOPE_VALUE_CODEC) != 0) {
+                if (valueCodec == null) {
+                    throw new IllegalStateException("The value is encoded but no ValueCodec is set");
+                }
+                byte[] encoded = decrypted;
+                try {
+                    decrypted = valueCodec.decode(encoded);
+                } finally {
+                    Arrays.fill(encoded, (byte) 0);
+                }
+            }
         } catch (Exception e) {
             throw new UnexpectedDecryptionStateException(e);
         }
-        return new String(decrypted, CHARSET);
+        return decrypted;
+    }
+
+    /**
+     * @return A bit set of {@code ENVELOPE_*}
+     */
+    private int parseFlags(@NonNull String encrypted, int flagsEnd) {
+        int envelope = 0;
+        for (int i = 1; i < flagsEnd; i++) {
+            char flag = encrypted.charAt(i);
+            if (flag == FLAG_VALUE_CODEC) {
+                envelope |= ENVELOPE_VALUE_CODEC;
+            } else if (flag == FLAG_GCM) {
+                envelope |= ENVELOPE_GCM;
+            } else {
+                throw new UnexpectedDecryptionStateException(
+                        new IllegalArgumentException("Unknown flag: " + flag));
+            }
+        }
+        return envelope;
+    }
+
+    /**
+     * @return The cipher of this instance, or another one if the value is encrypted in another
+     * mode, e.g. values written before the cipher was changed by {@link CipherSelector}, or
+     * deterministically encrypted values of a GCM instance.
+     */
+    @NonNull
+    private Cipher getCipherFor(boolean gcmEnvelope) throws GeneralSecurityException {
+        if (gcmEnvelope == gcm) {
+            return cipher;
+        }
+        if (gcmEnvelope && !isGcmSupported()) {
+            throw new NoSuchAlgorithmException("AES-GCM requires API level 19");
+        }
+        if (alternateCipher == null) {
+            String algorithmMode = gcmEnvelope ? GCM_ALGORITHM_MODE : DEFAULT_ALGORITHM_MODE;
+            try {
+                alternateCipher = Cipher.getInstance(algorithmMode, cipher.getProvider());
+            } catch (GeneralSecurityException e) {
+                alternateCipher = Cipher.getInstance(algorithmMode);
+            }
+        }
+        return alternateCipher;
+    }
+
+    @NonNull
+    private SecretBuffer getScratchBuffer(int capacity) {
+        if (scratchBuffer == null) {
+            scratchBuffer = SecretBuffer.allocate(Math.max(capacity, SCRATCH_BUFFER_SIZE));
+        } else {
+            scratchBuffer.wipe();
+            scratchBuffer.ensureCapacity(capacity);
+        }
+        return scratchBuffer;
+    }
+
+    /**
+     * Makes the string representation of encrypted data: {@code "$" flags "$" base64} if
+     * there are flags, or just {@code base64} as 2.0.0 did otherwise.
+     */
+    @NonNull
+    private static String encodeEnvelope(@NonNull CharSequence flags, @NonNull byte[] buffer, int length) {
+        String base64 = Base64.encodeToString(buffer, 0, length, Base64.NO_WRAP);
+        if (flags.length() == 0) {
+            return base64;
+        }
+        return ENVELOPE_MARKER + flags.toString() + ENVELOPE_MARKER + base64;
+    }
+
+    /**
+     * @return The index of the {@code '$'} that terminates flags, or {@code -1} if {@code encrypted}
+     * has no flags.
+     */
+    private int findFlagsEnd(@NonNull String encrypted) {
+        if (encrypted.isEmpty() || encrypted.charAt(0) != ENVELOPE_MARKER) {
+            return -1;
+        }
+        int end = encrypted.indexOf(ENVELOPE_MARKER, 1);
+        if (end < 0) {
+            throw new UnexpectedDecryptionStateException(
+                    new IllegalArgumentException("Unterminated flags"));
+        }
+        return end;
     }
 
     public class UnexpectedStateException extends RuntimeException {
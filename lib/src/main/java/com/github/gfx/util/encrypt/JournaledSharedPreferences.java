@@ -0,0 +1,687 @@
+package com.github.gfx.util.encrypt;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * A {@link android.content.SharedPreferences} that records commits in a write-ahead journal
+ * instead of rewriting the whole base preferences each time. A commit appends one small record
+ * and syncs it, so its cost is proportional to the change; the journal is folded into the base
+ * when it grows large, or by {@link #checkpoint()}. Records are checksummed, and a record torn by
+ * a crash is discarded when the journal is replayed on the next start.
+ * <p>
+ * It is meant to be the base of {@link EncryptedSharedPreferences}:
+ * <pre>{@code
+ * new EncryptedSharedPreferences(new JournaledSharedPreferences(context, name), encryption);
+ * }</pre>
+ * Create only one instance per name in each process.
+ */
+public class JournaledSharedPreferences implements SharedPreferences {
+
+    private static final String TAG = JournaledSharedPreferences.class.getSimpleName();
+
+    private static final Charset CHARSET = Charset.forName("UTF-8");
+
+    // length(4) crc32(4)
+    private static final int RECORD_HEADER_SIZE = 4 + 4;
+
+    private static final int MAX_RECORD_SIZE = 16 * 1024 * 1024;
+
+    /**
+     * The journal is folded into the base when it gets larger than this.
+     */
+    private static final int MAX_JOURNAL_SIZE = 64 * 1024;
+
+    private static final int FLAG_CLEARED = 1;
+
+    // value types in records
+    private static final int TYPE_REMOVED = 0;
+
+    private static final int TYPE_STRING = 1;
+
+    private static final int TYPE_INT = 2;
+
+    private static final int TYPE_LONG = 3;
+
+    private static final int TYPE_FLOAT = 4;
+
+    private static final int TYPE_BOOLEAN = 5;
+
+    private static final int TYPE_STRING_SET = 6;
+
+    private static final Object REMOVED = new Object();
+
+    private final SharedPreferences base;
+
+    private final File journalFile;
+
+    private final RandomAccessFile journal;
+
+    private final FileChannel channel;
+
+    private final ThreadPoolExecutor writer;
+
+    /**
+     * Values changed since the last fold, or {@link #REMOVED}.
+     */
+    private final Map<String, Object> overlay = new HashMap<>();
+
+    /**
+     * True if the store is cleared since the last fold, so the base is hidden.
+     */
+    private boolean cleared;
+
+    private int clearCount;
+
+    /**
+     * The end of the last complete record; accessed only in the writer thread after replay.
+     */
+    private long journalEnd;
+
+    private final CopyOnWriteArrayList<OnSharedPreferenceChangeListener> listeners
+            = new CopyOnWriteArrayList<>();
+
+    private Handler mainHandler;
+
+    /**
+     * @param name - the name of the base {@link android.content.SharedPreferences}; the journal is
+     *             stored as {@code name + ".journal"} in {@code context.getFilesDir()}.
+     */
+    public JournaledSharedPreferences(@NonNull Context context, @NonNull String name)
+            throws IOException {
+        this(context.getSharedPreferences(name, Context.MODE_PRIVATE),
+                new File(context.getFilesDir(), name + ".journal"));
+    }
+
+    /**
+     * @param base        - preferences that the journal is folded into; do not write it directly
+     * @param journalFile - the journal file, created if it does not exist
+     */
+    public JournaledSharedPreferences(@NonNull SharedPreferences base, @NonNull File journalFile)
+            throws IOException {
+        this.base = base;
+        this.journalFile = journalFile;
+        this.journal = new RandomAccessFile(journalFile, "rw");
+        this.channel = journal.getChannel();
+        this.writer = new ThreadPoolExecutor(1, 1, 10, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(),
+                CryptoExecutors.newThreadFactory(TAG));
+        writer.allowCoreThreadTimeOut(true);
+
+        replay();
+    }
+
+    /**
+     * Loads the journal into the overlay, truncating it at the first incomplete or corrupt record.
+     */
+    private void replay() throws IOException {
+        long size = channel.size();
+        long position = 0;
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+        CRC32 crc = new CRC32();
+        while (position + RECORD_HEADER_SIZE <= size) {
+            header.clear();
+            readFully(header, position);
+            header.flip();
+            int length = header.getInt();
+            int checksum = header.getInt();
+            if (length < 0 || length > MAX_RECORD_SIZE
+                    || position + RECORD_HEADER_SIZE + length > size) {
+                break;
+            }
+            ByteBuffer record = ByteBuffer.allocate(length);
+            readFully(record, position + RECORD_HEADER_SIZE);
+            crc.reset();
+            crc.update(record.array(), 0, length);
+            if ((int) crc.getValue() != checksum) {
+                break;
+            }
+            record.flip();
+            applyRecord(record);
+            position += RECORD_HEADER_SIZE + length;
+        }
+        journalEnd = position;
+        if (position < size) {
+            Log.w(TAG, "Discarded a torn record at " + position + " of " + journalFile);
+            channel.truncate(position);
+            channel.force(false);
+        }
+    }
+
+    private void applyRecord(@NonNull ByteBuffer record) {
+        int flags = record.get();
+        if ((flags & FLAG_CLEARED) != 0) {
+            clearOverlay();
+        }
+        int count = record.getInt();
+        for (int i = 0; i < count; i++) {
+            String key = readString(record);
+            Object value = readValue(record);
+            overlay.put(key, value != null ? value : REMOVED);
+        }
+    }
+
+    /**
+     * @return A value, or null for {@link #TYPE_REMOVED}
+     */
+    @Nullable
+    private static Object readValue(@NonNull ByteBuffer buffer) {
+        int type = buffer.get();
+        switch (type) {
+            case TYPE_REMOVED:
+                return null;
+            case TYPE_STRING:
+                return readString(buffer);
+            case TYPE_INT:
+                return buffer.getInt();
+            case TYPE_LONG:
+                return buffer.getLong();
+            case TYPE_FLOAT:
+                return buffer.getFloat();
+            case TYPE_BOOLEAN:
+                return buffer.get() != 0;
+            case TYPE_STRING_SET:
+                int size = buffer.getInt();
+                Set<String> values = new HashSet<>(size * 2);
+                for (int i = 0; i < size; i++) {
+                    values.add(readString(buffer));
+                }
+                return Collections.unmodifiableSet(values);
+            default:
+                throw new IllegalArgumentException("Unknown value type: " + type);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void writeValue(@NonNull DataOutputStream out, @Nullable Object value)
+            throws IOException {
+        if (value == null) {
+            out.writeByte(TYPE_REMOVED);
+        } else if (value instanceof String) {
+            out.writeByte(TYPE_STRING);
+            writeString(out, (String) value);
+        } else if (value instanceof Integer) {
+            out.writeByte(TYPE_INT);
+            out.writeInt((Integer) value);
+        } else if (value instanceof Long) {
+            out.writeByte(TYPE_LONG);
+            out.writeLong((Long) value);
+        } else if (value instanceof Float) {
+            out.writeByte(TYPE_FLOAT);
+            out.writeFloat((Float) value);
+        } else if (value instanceof Boolean) {
+            out.writeByte(TYPE_BOOLEAN);
+            out.writeBoolean((Boolean) value);
+        } else {
+            Set<String> values = (Set<String>) value;
+            out.writeByte(TYPE_STRING_SET);
+            out.writeInt(values.size());
+            for (String element : values) {
+                writeString(out, element);
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private static void putValue(@NonNull Editor editor, @NonNull String key, @NonNull Object value) {
+        if (value instanceof String) {
+            editor.putString(key, (String) value);
+        } else if (value instanceof Integer) {
+            editor.putInt(key, (Integer) value);
+        } else if (value instanceof Long) {
+            editor.putLong(key, (Long) value);
+        } else if (value instanceof Float) {
+            editor.putFloat(key, (Float) value);
+        } else if (value instanceof Boolean) {
+            editor.putBoolean(key, (Boolean) value);
+        } else {
+            editor.putStringSet(key, (Set<String>) value);
+        }
+    }
+
+    @NonNull
+    private static String readString(@NonNull ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return new String(bytes, CHARSET);
+    }
+
+    private static void writeString(@NonNull DataOutputStream out, @NonNull String value)
+            throws IOException {
+        byte[] bytes = value.getBytes(CHARSET);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    @NonNull
+    private static byte[] encodeRecord(@NonNull Map<String, Object> edits, boolean cleared) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeInt(0); // length
+            out.writeInt(0); // crc32
+            out.writeByte(cleared ? FLAG_CLEARED : 0);
+            out.writeInt(edits.size());
+            for (Map.Entry<String, Object> entry : edits.entrySet()) {
+                writeString(out, entry.getKey());
+                writeValue(out, entry.getValue());
+            }
+        } catch (IOException e) {
+            throw new AssertionError(e); // never happens
+        }
+
+        byte[] record = bytes.toByteArray();
+        int length = record.length - RECORD_HEADER_SIZE;
+        CRC32 crc = new CRC32();
+        crc.update(record, RECORD_HEADER_SIZE, length);
+        ByteBuffer.wrap(record).putInt(length).putInt((int) crc.getValue());
+        return record;
+    }
+
+    private void readFully(@NonNull ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int n = channel.read(buffer, position);
+            if (n < 0) {
+                throw new IOException("Unexpected end of " + journalFile);
+            }
+            position += n;
+        }
+    }
+
+    private void writeFully(@NonNull ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    private void clearOverlay() {
+        overlay.clear();
+        cleared = true;
+        clearCount++;
+    }
+
+    /**
+     * Called in the writer thread.
+     */
+    private void appendRecord(@NonNull byte[] record) throws IOException {
+        // a record partially written by a failed call is overwritten
+        writeFully(ByteBuffer.wrap(record), journalEnd);
+        channel.force(false);
+        journalEnd += record.length;
+        if (journalEnd > MAX_JOURNAL_SIZE) {
+            try {
+                fold();
+            } catch (IOException e) {
+                // the record is durable anyway; the fold is retried by the next commit
+                Log.w(TAG, "Failed to fold " + journalFile, e);
+            }
+        }
+    }
+
+    /**
+     * Writes the overlay to the base and empties the journal. Called in the writer thread.
+     * <p>
+     * Records are whole values and tombstones, so if a crash happens before the journal is
+     * truncated, replaying it over the new base gives the same result.
+     */
+    private void fold() throws IOException {
+        Map<String, Object> snapshot;
+        boolean snapshotCleared;
+        int snapshotClearCount;
+        synchronized (this) {
+            snapshot = new HashMap<>(overlay);
+            snapshotCleared = cleared;
+            snapshotClearCount = clearCount;
+        }
+
+        Editor editor = base.edit();
+        if (snapshotCleared) {
+            editor.clear();
+        }
+        for (Map.Entry<String, Object> entry : snapshot.entrySet()) {
+            if (entry.getValue() != REMOVED) {
+                putValue(editor, entry.getKey(), entry.getValue());
+            } else {
+                editor.remove(entry.getKey());
+            }
+        }
+        if (!editor.commit()) {
+            throw new IOException("Failed to write the base of " + journalFile);
+        }
+
+        channel.truncate(0);
+        channel.force(false);
+        journalEnd = 0;
+
+        synchronized (this) {
+            // keeps values changed by apply() after the snapshot
+            for (Map.Entry<String, Object> entry : snapshot.entrySet()) {
+                if (overlay.get(entry.getKey()) == entry.getValue()) {
+                    overlay.remove(entry.getKey());
+                }
+            }
+            if (clearCount == snapshotClearCount) {
+                cleared = false;
+            }
+        }
+    }
+
+    /**
+     * Folds the journal into the base synchronously, e.g. when the app goes to the background.
+     *
+     * @return true if the journal is folded successfully
+     */
+    public boolean checkpoint() {
+        return await(writer.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                try {
+                    fold();
+                } catch (IOException e) {
+                    Log.w(TAG, "Failed to fold " + journalFile, e);
+                    throw e;
+                }
+                return null;
+            }
+        }));
+    }
+
+    private boolean await(@NonNull Future<?> future) {
+        try {
+            future.get();
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (ExecutionException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Applies {@code edits} to the overlay and queues their record to the writer thread.
+     */
+    @NonNull
+    private Future<?> commitEdits(@NonNull Map<String, Object> edits, boolean clear) {
+        final byte[] record = encodeRecord(edits, clear);
+        Future<?> future;
+        synchronized (this) {
+            if (clear) {
+                clearOverlay();
+            }
+            for (Map.Entry<String, Object> entry : edits.entrySet()) {
+                overlay.put(entry.getKey(), entry.getValue() != null ? entry.getValue() : REMOVED);
+            }
+            // submitted in the lock to keep records in the order of the overlay
+            future = writer.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    try {
+                        appendRecord(record);
+                    } catch (IOException e) {
+                        Log.w(TAG, "Failed to write " + journalFile, e);
+                        throw e;
+                    }
+                    return null;
+                }
+            });
+        }
+        if (!listeners.isEmpty()) {
+            notifyListeners(edits.keySet(), clear);
+        }
+        return future;
+    }
+
+    @Override
+    public synchronized Map<String, ?> getAll() {
+        Map<String, Object> map = new HashMap<>();
+        if (!cleared) {
+            map.putAll(base.getAll());
+        }
+        for (Map.Entry<String, Object> entry : overlay.entrySet()) {
+            if (entry.getValue() != REMOVED) {
+                map.put(entry.getKey(), entry.getValue());
+            } else {
+                map.remove(entry.getKey());
+            }
+        }
+        return map;
+    }
+
+    /**
+     * @return The value in the overlay, {@link #REMOVED} if it is removed or the base is hidden, or
+     * null if the base has the value.
+     */
+    @Nullable
+    private Object getOverlayValue(@NonNull String key) {
+        Object value = overlay.get(key);
+        return value == null && cleared ? REMOVED : value;
+    }
+
+    @Nullable
+    @Override
+    public synchronized String getString(@NonNull String key, @Nullable String defValue) {
+        Object value = getOverlayValue(key);
+        if (value == null) {
+            return base.getString(key, defValue);
+        }
+        return value != REMOVED ? (String) value : defValue;
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    public synchronized Set<String> getStringSet(@NonNull String key, Set<String> defValues) {
+        Object value = getOverlayValue(key);
+        if (value == null) {
+            return base.getStringSet(key, defValues);
+        }
+        return value != REMOVED ? (Set<String>) value : defValues;
+    }
+
+    @Override
+    public synchronized int getInt(@NonNull String key, int defValue) {
+        Object value = getOverlayValue(key);
+        if (value == null) {
+            return base.getInt(key, defValue);
+        }
+        return value != REMOVED ? (Integer) value : defValue;
+    }
+
+    @Override
+    public synchronized long getLong(@NonNull String key, long defValue) {
+        Object value = getOverlayValue(key);
+        if (value == null) {
+            return base.getLong(key, defValue);
+        }
+        return value != REMOVED ? (Long) value : defValue;
+    }
+
+    @Override
+    public synchronized float getFloat(@NonNull String key, float defValue) {
+        Object value = getOverlayValue(key);
+        if (value == null) {
+            return base.getFloat(key, defValue);
+        }
+        return value != REMOVED ? (Float) value : defValue;
+    }
+
+    @Override
+    public synchronized boolean getBoolean(@NonNull String key, boolean defValue) {
+        Object value = getOverlayValue(key);
+        if (value == null) {
+            return base.getBoolean(key, defValue);
+        }
+        return value != REMOVED ? (Boolean) value : defValue;
+    }
+
+    @Override
+    public synchronized boolean contains(@NonNull String key) {
+        Object value = getOverlayValue(key);
+        if (value == null) {
+            return base.contains(key);
+        }
+        return value != REMOVED;
+    }
+
+    @Override
+    public Editor edit() {
+        return new JournaledEditor();
+    }
+
+    @Override
+    public void registerOnSharedPreferenceChangeListener(
+            @NonNull OnSharedPreferenceChangeListener listener) {
+        listeners.addIfAbsent(listener);
+    }
+
+    @Override
+    public void unregisterOnSharedPreferenceChangeListener(
+            @NonNull OnSharedPreferenceChangeListener listener) {
+        listeners.remove(listener);
+    }
+
+    private void notifyListeners(@NonNull Set<String> keys, boolean clear) {
+        final Set<String> changedKeys = new LinkedHashSet<>();
+        if (clear) {
+            changedKeys.add(null);
+        }
+        changedKeys.addAll(keys);
+        synchronized (this) {
+            if (mainHandler == null) {
+                mainHandler = new Handler(Looper.getMainLooper());
+            }
+        }
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                for (String key : changedKeys) {
+                    for (OnSharedPreferenceChangeListener listener : listeners) {
+                        listener.onSharedPreferenceChanged(JournaledSharedPreferences.this, key);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Waits for pending writes and releases the journal. This instance cannot be used after this
+     * call.
+     */
+    public void close() throws IOException {
+        writer.shutdown();
+        try {
+            writer.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        journal.close();
+    }
+
+    private class JournaledEditor implements Editor {
+
+        private final Map<String, Object> edits = new LinkedHashMap<>();
+
+        private boolean cleared;
+
+        @Override
+        public synchronized Editor putString(@NonNull String key, @Nullable String value) {
+            edits.put(key, value);
+            return this;
+        }
+
+        @Override
+        @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+        public synchronized Editor putStringSet(String key, Set<String> values) {
+            edits.put(key, values != null ? Collections.unmodifiableSet(new HashSet<>(values)) : null);
+            return this;
+        }
+
+        @Override
+        public synchronized Editor putInt(String key, int value) {
+            edits.put(key, value);
+            return this;
+        }
+
+        @Override
+        public synchronized Editor putLong(String key, long value) {
+            edits.put(key, value);
+            return this;
+        }
+
+        @Override
+        public synchronized Editor putFloat(String key, float value) {
+            edits.put(key, value);
+            return this;
+        }
+
+        @Override
+        public synchronized Editor putBoolean(String key, boolean value) {
+            edits.put(key, value);
+            return this;
+        }
+
+        @Override
+        public synchronized Editor remove(String key) {
+            edits.put(key, null);
+            return this;
+        }
+
+        @Override
+        public synchronized Editor clear() {
+            cleared = true;
+            return this;
+        }
+
+        @NonNull
+        private Future<?> commitEdits() {
+            Future<?> future = JournaledSharedPreferences.this.commitEdits(
+                    Collections.unmodifiableMap(new LinkedHashMap<>(edits)), cleared);
+            edits.clear();
+            cleared = false;
+            return future;
+        }
+
+        @Override
+        public synchronized boolean commit() {
+            return await(commitEdits());
+        }
+
+        @Override
+        public synchronized void apply() {
+            commitEdits();
+        }
+    }
+}
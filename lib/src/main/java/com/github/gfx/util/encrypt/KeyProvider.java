@@ -0,0 +1,21 @@
+package com.github.gfx.util.encrypt;
+
+import android.support.annotation.NonNull;
+
+import javax.crypto.SecretKey;
+
+/**
+ * A source of the private key for {@link com.github.gfx.util.encrypt.Encryption}.
+ * Implementations must be thread-safe.
+ *
+ * @see com.github.gfx.util.encrypt.DefaultKeyProvider
+ * @see com.github.gfx.util.encrypt.KeyStoreKeyProvider
+ */
+public interface KeyProvider {
+
+    /**
+     * @return The private key. This method may block, e.g. to read a key store.
+     */
+    @NonNull
+    SecretKey getKey();
+}
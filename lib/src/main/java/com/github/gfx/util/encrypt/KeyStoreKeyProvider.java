@@ -0,0 +1,52 @@
+package com.github.gfx.util.encrypt;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.security.Key;
+import java.security.KeyStore;
+
+import javax.crypto.SecretKey;
+
+/**
+ * A {@link com.github.gfx.util.encrypt.KeyProvider} that reads a secret key from a
+ * {@link java.security.KeyStore}, e.g. a software key store loaded from a file, or
+ * {@code "AndroidKeyStore"} on Android 6.0 and later.
+ * <p>
+ * Note that keys in {@code "AndroidKeyStore"} cannot be exported, so
+ * {@link Encryption#getKeyId()} does not work with them.
+ */
+public class KeyStoreKeyProvider extends CachedKeyProvider {
+
+    private final KeyStore keyStore;
+
+    private final String alias;
+
+    @Nullable
+    private final char[] password;
+
+    /**
+     * @param keyStore - a key store which is already loaded
+     * @param alias    - the alias of the secret key
+     * @param password - the password for the key, or null if it is not protected
+     */
+    public KeyStoreKeyProvider(@NonNull KeyStore keyStore, @NonNull String alias,
+            @Nullable char[] password) {
+        this.keyStore = keyStore;
+        this.alias = alias;
+        this.password = password;
+    }
+
+    @NonNull
+    @Override
+    protected SecretKey loadKey() throws Exception {
+        Key key = keyStore.getKey(alias, password);
+        if (key == null) {
+            throw new IllegalStateException("No key found for alias=" + alias);
+        } else if (!(key instanceof SecretKey)) {
+            throw new IllegalStateException("Not a secret key for alias=" + alias
+                    + ": " + key.getAlgorithm());
+        }
+        return (SecretKey) key;
+    }
+}
@@ -0,0 +1,642 @@
+package com.github.gfx.util.encrypt;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Build;
+import android.os.FileObserver;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * An {@link android.content.SharedPreferences} backed by {@link com.github.gfx.util.encrypt.Encryption}
+ * that can be shared by multiple processes of an app. It does not rely on
+ * {@code Context.MODE_MULTI_PROCESS}, which reloads files only by their modification time and size,
+ * but keeps encrypted values in its own files guarded by a file lock: a change log, whose records
+ * carry the encrypted values of each commit with a version counter, and a snapshot of all the
+ * values, which is written when the log is compacted. Each process keeps decrypted values in memory,
+ * and when it sees a newer version it reads only the records since the version it saw last and drops
+ * only the values changed by them, so unchanged values are not decrypted again.
+ * <p>
+ * Create only one instance per name in each process. Because changes must be written under the
+ * lock, {@code apply()} of its editor commits synchronously as {@code commit()} does.
+ * Listeners are notified of changes made by other processes, too.
+ */
+public class MultiProcessEncryptedSharedPreferences implements SharedPreferences {
+
+    private static final Charset CHARSET = Charset.forName("UTF-8");
+
+    // version(8) firstVersion(8) logEnd(8)
+    private static final int HEADER_SIZE = 8 + 8 + 8;
+
+    // version(8) cleared(1) count(4)
+    private static final int RECORD_HEADER_SIZE = 8 + 1 + 4;
+
+    private static final int REMOVED = -1;
+
+    /**
+     * The change log is compacted when it gets larger than this.
+     */
+    private static final int MAX_LOG_SIZE = 64 * 1024;
+
+    private static final Object NO_VALUE = new Object();
+
+    private final Encryption encryption;
+
+    private final File logFile;
+
+    private final File snapshotFile;
+
+    private final RandomAccessFile log;
+
+    private final FileChannel channel;
+
+    private long seenVersion;
+
+    /**
+     * Encrypted values as of {@link #seenVersion}.
+     */
+    private final Map<String, String> values = new HashMap<>();
+
+    /**
+     * Decrypted values; {@link #NO_VALUE} for absent keys.
+     */
+    private final Map<String, Object> cache = new HashMap<>();
+
+    private final CopyOnWriteArrayList<OnSharedPreferenceChangeListener> listeners
+            = new CopyOnWriteArrayList<>();
+
+    @Nullable
+    private FileObserver logObserver;
+
+    private Handler mainHandler;
+
+    /**
+     * @param name - the name of the store; the change log and the snapshot are stored as
+     *             {@code name + ".changes"} and {@code name + ".values"} in {@code context.getFilesDir()}.
+     */
+    public MultiProcessEncryptedSharedPreferences(@NonNull Context context, @NonNull String name,
+            @NonNull Encryption encryption) throws IOException {
+        this.encryption = encryption;
+        this.logFile = new File(context.getFilesDir(), name + ".changes");
+        this.snapshotFile = new File(context.getFilesDir(), name + ".values");
+        this.log = new RandomAccessFile(logFile, "rw");
+        this.channel = log.getChannel();
+
+        boolean initialized = false;
+        try {
+            FileLock lock = channel.lock();
+            try {
+                if (channel.size() < HEADER_SIZE) {
+                    writeHeader(0, 1, HEADER_SIZE);
+                }
+                syncLocked();
+            } finally {
+                lock.release();
+            }
+            initialized = true;
+        } finally {
+            if (!initialized) {
+                log.close();
+            }
+        }
+    }
+
+    @NonNull
+    private ByteBuffer readHeader() throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        readFully(header, 0);
+        header.flip();
+        return header;
+    }
+
+    private long readVersion() throws IOException {
+        ByteBuffer version = ByteBuffer.allocate(8);
+        readFully(version, 0);
+        return version.getLong(0);
+    }
+
+    private void writeHeader(long version, long firstVersion, long logEnd) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putLong(version).putLong(firstVersion).putLong(logEnd).flip();
+        writeFully(header, 0);
+    }
+
+    private void readFully(@NonNull ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int n = channel.read(buffer, position);
+            if (n < 0) {
+                throw new IOException("Unexpected end of " + logFile);
+            }
+            position += n;
+        }
+    }
+
+    private void writeFully(@NonNull ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    /**
+     * Catches up with changes made by other processes. This is called by every read, but it costs
+     * only reading the version in the header of the change log if nothing has changed.
+     */
+    public void sync() {
+        sync(false);
+    }
+
+    private void sync(boolean force) {
+        Set<String> changedKeys;
+        synchronized (this) {
+            try {
+                // read without the lock; a torn read only makes it take the slow path
+                if (!force && readVersion() == seenVersion) {
+                    return;
+                }
+                FileLock lock = channel.lock(0, Long.MAX_VALUE, true);
+                try {
+                    changedKeys = syncLocked();
+                } finally {
+                    lock.release();
+                }
+            } catch (IOException e) {
+                throw new IllegalStateException("Failed to read " + logFile, e);
+            }
+        }
+        if (changedKeys != null && !listeners.isEmpty()) {
+            notifyChanges(changedKeys);
+        }
+    }
+
+    /**
+     * Must be called with the file lock held.
+     *
+     * @return Keys changed by others, which contain null if the store is cleared or reloaded, or null
+     * if nothing has changed.
+     */
+    @Nullable
+    private Set<String> syncLocked() throws IOException {
+        ByteBuffer header = readHeader();
+        long version = header.getLong();
+        long firstVersion = header.getLong();
+        long logEnd = header.getLong();
+        if (version == seenVersion) {
+            return null;
+        }
+
+        Set<String> changedKeys = new HashSet<>();
+        long fromVersion = seenVersion;
+        if (seenVersion + 1 < firstVersion) {
+            // the log has been compacted since we saw it last
+            changedKeys.add(null);
+            values.clear();
+            cache.clear();
+            fromVersion = readSnapshot(firstVersion);
+        }
+
+        ByteBuffer records = ByteBuffer.allocate((int) (logEnd - HEADER_SIZE));
+        readFully(records, HEADER_SIZE);
+        records.flip();
+        while (records.hasRemaining()) {
+            long recordVersion = records.getLong();
+            boolean cleared = records.get() != 0;
+            int count = records.getInt();
+            boolean changed = recordVersion > fromVersion;
+            if (cleared && changed) {
+                changedKeys.add(null);
+                values.clear();
+                cache.clear();
+            }
+            readEntries(records, count, changed, changedKeys);
+        }
+        seenVersion = version;
+        return changedKeys;
+    }
+
+    /**
+     * Reads the snapshot into {@link #values}.
+     *
+     * @return The version of the snapshot.
+     */
+    private long readSnapshot(long firstVersion) throws IOException {
+        if (!snapshotFile.exists()) {
+            throw new IOException("Missing " + snapshotFile + " for version " + (firstVersion - 1));
+        }
+        RandomAccessFile raf = new RandomAccessFile(snapshotFile, "r");
+        ByteBuffer snapshot;
+        try {
+            byte[] bytes = new byte[(int) raf.length()];
+            raf.readFully(bytes);
+            snapshot = ByteBuffer.wrap(bytes);
+        } finally {
+            raf.close();
+        }
+        long version = snapshot.getLong();
+        if (version + 1 < firstVersion) {
+            throw new IOException("Stale " + snapshotFile + ": version=" + version
+                    + " but the log starts at " + firstVersion);
+        }
+        readEntries(snapshot, snapshot.getInt(), true, null);
+        return version;
+    }
+
+    /**
+     * Reads entries of a record or the snapshot, and applies them to {@link #values} if
+     * {@code apply} is true.
+     *
+     * @param changedKeys - collects the applied keys if not null
+     */
+    private void readEntries(@NonNull ByteBuffer entries, int count, boolean apply,
+            @Nullable Set<String> changedKeys) {
+        for (int i = 0; i < count; i++) {
+            byte[] key = new byte[entries.getShort() & 0xFFFF];
+            entries.get(key);
+            int valueLength = entries.getInt();
+            byte[] value = valueLength != REMOVED ? new byte[valueLength] : null;
+            if (value != null) {
+                entries.get(value);
+            }
+            if (apply) {
+                String k = new String(key, CHARSET);
+                cache.remove(k);
+                if (value != null) {
+                    values.put(k, new String(value, CHARSET));
+                } else {
+                    values.remove(k);
+                }
+                if (changedKeys != null) {
+                    changedKeys.add(k);
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes {@code edits} to the change log, under the file lock, and then applies them to this
+     * instance.
+     */
+    private synchronized boolean commitEdits(@NonNull Map<String, String> edits, boolean cleared) {
+        Set<String> changedKeys;
+        try {
+            FileLock lock = channel.lock();
+            try {
+                changedKeys = syncLocked();
+
+                Map<String, String> encrypted = new HashMap<>();
+                for (Map.Entry<String, String> entry : edits.entrySet()) {
+                    String value = entry.getValue();
+                    encrypted.put(entry.getKey(), value != null ? encryption.encrypt(value) : null);
+                }
+                long logEnd = appendRecord(encrypted, cleared);
+
+                if (cleared) {
+                    values.clear();
+                    cache.clear();
+                }
+                for (Map.Entry<String, String> entry : edits.entrySet()) {
+                    String key = entry.getKey();
+                    if (entry.getValue() != null) {
+                        values.put(key, encrypted.get(key));
+                        cache.put(key, entry.getValue());
+                    } else {
+                        values.remove(key);
+                        cache.put(key, NO_VALUE);
+                    }
+                }
+
+                if (cleared || logEnd > MAX_LOG_SIZE) {
+                    compact();
+                }
+            } finally {
+                lock.release();
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Failed to write " + logFile, e);
+        }
+        if (!listeners.isEmpty()) {
+            Set<String> keys = new LinkedHashSet<>();
+            if (changedKeys != null) {
+                keys.addAll(changedKeys);
+            }
+            if (cleared) {
+                keys.add(null);
+            }
+            keys.addAll(edits.keySet());
+            notifyChanges(keys);
+        }
+        return true;
+    }
+
+    /**
+     * Appends a record of {@code edits}, whose values are encrypted or null for removed keys.
+     *
+     * @return The new end of the change log.
+     */
+    private long appendRecord(@NonNull Map<String, String> edits, boolean cleared) throws IOException {
+        ByteBuffer header = readHeader();
+        long version = header.getLong() + 1;
+        long firstVersion = header.getLong();
+        long logEnd = header.getLong();
+
+        ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_SIZE + entriesSize(edits));
+        record.putLong(version);
+        record.put((byte) (cleared ? 1 : 0));
+        record.putInt(edits.size());
+        putEntries(record, edits);
+        record.flip();
+
+        // a record torn by a crash is overwritten because logEnd is updated last
+        int size = record.remaining();
+        writeFully(record, logEnd);
+        channel.force(false);
+        writeHeader(version, firstVersion, logEnd + size);
+        channel.force(false);
+        seenVersion = version;
+        return logEnd + size;
+    }
+
+    /**
+     * Writes all the values to the snapshot and empties the change log. The log is emptied only
+     * after the snapshot is renamed into place, so a crash in between leaves the records that
+     * the snapshot already has, which readers skip by its version.
+     */
+    private void compact() throws IOException {
+        File tempFile = new File(snapshotFile.getPath() + ".tmp");
+        boolean renamed = false;
+        try {
+            ByteBuffer snapshot = ByteBuffer.allocate(8 + 4 + entriesSize(values));
+            snapshot.putLong(seenVersion);
+            snapshot.putInt(values.size());
+            putEntries(snapshot, values);
+
+            RandomAccessFile raf = new RandomAccessFile(tempFile, "rw");
+            try {
+                raf.setLength(0);
+                raf.write(snapshot.array(), 0, snapshot.position());
+                raf.getFD().sync();
+            } finally {
+                raf.close();
+            }
+            if (!tempFile.renameTo(snapshotFile)) {
+                throw new IOException("Failed to rename " + tempFile + " to " + snapshotFile);
+            }
+            renamed = true;
+        } finally {
+            if (!renamed) {
+                //noinspection ResultOfMethodCallIgnored
+                tempFile.delete();
+            }
+        }
+
+        writeHeader(seenVersion, seenVersion + 1, HEADER_SIZE);
+        channel.truncate(HEADER_SIZE);
+        channel.force(false);
+    }
+
+    private static int entriesSize(@NonNull Map<String, String> entries) {
+        int size = 0;
+        for (Map.Entry<String, String> entry : entries.entrySet()) {
+            size += 2 + entry.getKey().getBytes(CHARSET).length + 4;
+            if (entry.getValue() != null) {
+                size += entry.getValue().getBytes(CHARSET).length;
+            }
+        }
+        return size;
+    }
+
+    private static void putEntries(@NonNull ByteBuffer buffer, @NonNull Map<String, String> entries) {
+        for (Map.Entry<String, String> entry : entries.entrySet()) {
+            byte[] key = entry.getKey().getBytes(CHARSET);
+            if (key.length > 0xFFFF) {
+                throw new IllegalArgumentException("Too long key: " + entry.getKey());
+            }
+            buffer.putShort((short) key.length);
+            buffer.put(key);
+            if (entry.getValue() != null) {
+                byte[] value = entry.getValue().getBytes(CHARSET);
+                buffer.putInt(value.length);
+                buffer.put(value);
+            } else {
+                buffer.putInt(REMOVED);
+            }
+        }
+    }
+
+    @Nullable
+    private synchronized String getCachedString(@NonNull String key) {
+        Object value = cache.get(key);
+        if (value == null) {
+            String encrypted = values.get(key);
+            String decrypted = encrypted != null ? encryption.decrypt(encrypted) : null;
+            cache.put(key, decrypted != null ? decrypted : NO_VALUE);
+            return decrypted;
+        }
+        return value != NO_VALUE ? (String) value : null;
+    }
+
+    @Override
+    public Map<String, ?> getAll() {
+        sync();
+        Map<String, String> map = new HashMap<>();
+        synchronized (this) {
+            for (String key : values.keySet()) {
+                map.put(key, getCachedString(key));
+            }
+        }
+        return map;
+    }
+
+    @Nullable
+    @Override
+    public String getString(@NonNull String key, @Nullable String defValue) {
+        sync();
+        String value = getCachedString(key);
+        return value != null ? value : defValue;
+    }
+
+    @Override
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    public Set<String> getStringSet(@NonNull String key, Set<String> defValues) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public int getInt(@NonNull String key, int defValue) {
+        String value = getString(key, null);
+        return value != null ? Integer.parseInt(value) : defValue;
+    }
+
+    @Override
+    public long getLong(@NonNull String key, long defValue) {
+        String value = getString(key, null);
+        return value != null ? Long.parseLong(value) : defValue;
+    }
+
+    @Override
+    public float getFloat(@NonNull String key, float defValue) {
+        String value = getString(key, null);
+        return value != null ? Float.parseFloat(value) : defValue;
+    }
+
+    @Override
+    public boolean getBoolean(@NonNull String key, boolean defValue) {
+        String value = getString(key, null);
+        return value != null ? Boolean.parseBoolean(value) : defValue;
+    }
+
+    @Override
+    public boolean contains(@NonNull String key) {
+        return getString(key, null) != null;
+    }
+
+    @Override
+    public Editor edit() {
+        return new MultiProcessEditor();
+    }
+
+    @Override
+    public void registerOnSharedPreferenceChangeListener(
+            @NonNull OnSharedPreferenceChangeListener listener) {
+        if (listeners.addIfAbsent(listener) && listeners.size() == 1) {
+            startWatching();
+        }
+    }
+
+    @Override
+    public void unregisterOnSharedPreferenceChangeListener(
+            @NonNull OnSharedPreferenceChangeListener listener) {
+        if (listeners.remove(listener) && listeners.isEmpty()) {
+            stopWatching();
+        }
+    }
+
+    private synchronized void startWatching() {
+        logObserver = new FileObserver(logFile.getPath(), FileObserver.MODIFY) {
+            @Override
+            public void onEvent(int event, String path) {
+                sync(true);
+            }
+        };
+        logObserver.startWatching();
+    }
+
+    private synchronized void stopWatching() {
+        if (logObserver != null) {
+            logObserver.stopWatching();
+            logObserver = null;
+        }
+    }
+
+    private void notifyChanges(@NonNull final Set<String> keys) {
+        synchronized (this) {
+            if (mainHandler == null) {
+                mainHandler = new Handler(Looper.getMainLooper());
+            }
+        }
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                for (String key : keys) {
+                    notifyListeners(key);
+                }
+            }
+        });
+    }
+
+    private void notifyListeners(@Nullable String key) {
+        for (OnSharedPreferenceChangeListener listener : listeners) {
+            listener.onSharedPreferenceChanged(this, key);
+        }
+    }
+
+    /**
+     * Releases the change log. This instance cannot be used after this call.
+     */
+    public void close() throws IOException {
+        stopWatching();
+        log.close();
+    }
+
+    private class MultiProcessEditor implements Editor {
+
+        private final Map<String, String> edits = new LinkedHashMap<>();
+
+        private boolean cleared;
+
+        @Override
+        public synchronized Editor putString(@NonNull String key, @Nullable String value) {
+            edits.put(key, value);
+            return this;
+        }
+
+        @Override
+        @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+        public synchronized Editor putStringSet(String key, Set<String> values) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public synchronized Editor putInt(String key, int value) {
+            return putString(key, String.valueOf(value));
+        }
+
+        @Override
+        public synchronized Editor putLong(String key, long value) {
+            return putString(key, String.valueOf(value));
+        }
+
+        @Override
+        public synchronized Editor putFloat(String key, float value) {
+            return putString(key, String.valueOf(value));
+        }
+
+        @Override
+        public synchronized Editor putBoolean(String key, boolean value) {
+            return putString(key, String.valueOf(value));
+        }
+
+        @Override
+        public synchronized Editor remove(String key) {
+            edits.put(key, null);
+            return this;
+        }
+
+        @Override
+        public synchronized Editor clear() {
+            cleared = true;
+            return this;
+        }
+
+        @Override
+        public synchronized boolean commit() {
+            boolean result = commitEdits(Collections.unmodifiableMap(new HashMap<>(edits)), cleared);
+            edits.clear();
+            cleared = false;
+            return result;
+        }
+
+        @Override
+        public synchronized void apply() {
+            commit();
+        }
+    }
+}
@@ -0,0 +1,18 @@
+package com.github.gfx.util.encrypt;
+
+import android.support.annotation.NonNull;
+
+/**
+ * A source of initialization vectors (nonces) used by {@link com.github.gfx.util.encrypt.Encryption}.
+ * Implementations must be thread-safe.
+ *
+ * @see com.github.gfx.util.encrypt.BufferedNonceSource
+ * @see com.github.gfx.util.encrypt.CounterNonceSource
+ */
+public interface NonceSource {
+
+    /**
+     * Fills {@code dest[offset]} to {@code dest[offset + length - 1]} with a fresh nonce.
+     */
+    void nextNonce(@NonNull byte[] dest, int offset, int length);
+}
@@ -0,0 +1,70 @@
+package com.github.gfx.util.encrypt;
+
+import android.support.annotation.NonNull;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A reusable direct {@link java.nio.ByteBuffer} for secrets such as plain texts, which lives
+ * outside the Java heap and is zeroed by {@link #wipe()}.
+ * <p>
+ * This class is not thread-safe.
+ *
+ * @see Encryption#encrypt(java.nio.ByteBuffer)
+ * @see Encryption#decrypt(String, SecretBuffer)
+ */
+public final class SecretBuffer {
+
+    private static final byte[] ZEROS = new byte[1024];
+
+    @NonNull
+    public static SecretBuffer allocate(int capacity) {
+        return new SecretBuffer(capacity);
+    }
+
+    @NonNull
+    private ByteBuffer buffer;
+
+    private SecretBuffer(int capacity) {
+        buffer = ByteBuffer.allocateDirect(capacity);
+    }
+
+    /**
+     * @return The underlying buffer. Note that it is replaced by {@link #ensureCapacity(int)}.
+     */
+    @NonNull
+    public ByteBuffer buffer() {
+        return buffer;
+    }
+
+    /**
+     * Makes sure that the remaining space is at least {@code remaining} bytes. If it grows the
+     * buffer, the content is moved to a new buffer and the old one is wiped.
+     */
+    public void ensureCapacity(int remaining) {
+        if (buffer.remaining() >= remaining) {
+            return;
+        }
+        ByteBuffer newBuffer = ByteBuffer.allocateDirect(
+                Math.max(buffer.position() + remaining, buffer.capacity() * 2));
+        buffer.flip();
+        newBuffer.put(buffer);
+        wipe(buffer);
+        buffer = newBuffer;
+    }
+
+    /**
+     * Fills the whole buffer with zeros and clears it.
+     */
+    public void wipe() {
+        wipe(buffer);
+    }
+
+    private static void wipe(@NonNull ByteBuffer buffer) {
+        buffer.clear();
+        while (buffer.hasRemaining()) {
+            buffer.put(ZEROS, 0, Math.min(ZEROS.length, buffer.remaining()));
+        }
+        buffer.clear();
+    }
+}
@@ -0,0 +1,337 @@
+package com.github.gfx.util.encrypt;
+
+import android.annotation.SuppressLint;
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Build;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * A {@link android.content.SharedPreferences} that hashes keys across multiple
+ * {@link com.github.gfx.util.encrypt.EncryptedSharedPreferences}, each of which has its own base
+ * file, {@link com.github.gfx.util.encrypt.Encryption} and lock. A shard is loaded when one of its
+ * keys is accessed first, a commit rewrites only the shards it touches, and {@code getAll()}
+ * decrypts the shards in parallel.
+ * <p>
+ * The number of shards must not change once values are stored, because it determines where keys
+ * are stored.
+ */
+public class ShardedEncryptedSharedPreferences implements SharedPreferences {
+
+    private final Context context;
+
+    private final String name;
+
+    private final Encryption encryption;
+
+    private final EncryptedSharedPreferences[] shards;
+
+    private final CopyOnWriteArrayList<OnSharedPreferenceChangeListener> listeners
+            = new CopyOnWriteArrayList<>();
+
+    private final OnSharedPreferenceChangeListener shardListener = new OnSharedPreferenceChangeListener() {
+        @Override
+        public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key) {
+            for (OnSharedPreferenceChangeListener listener : listeners) {
+                listener.onSharedPreferenceChanged(ShardedEncryptedSharedPreferences.this, key);
+            }
+        }
+    };
+
+    /**
+     * @param name       - the name prefix of the base {@link android.content.SharedPreferences};
+     *                   shards are stored as {@code name + "_shard" + index}
+     * @param shardCount - the number of shards
+     * @param encryption - an {@link com.github.gfx.util.encrypt.Encryption} to be copied for each shard
+     */
+    public ShardedEncryptedSharedPreferences(@NonNull Context context, @NonNull String name,
+            int shardCount, @NonNull Encryption encryption) {
+        if (shardCount <= 0) {
+            throw new IllegalArgumentException("shardCount must be positive: " + shardCount);
+        }
+        this.context = context;
+        this.name = name;
+        this.encryption = encryption;
+        this.shards = new EncryptedSharedPreferences[shardCount];
+    }
+
+    public int getShardCount() {
+        return shards.length;
+    }
+
+    /* package */ int getShardIndex(@NonNull String key) {
+        return (key.hashCode() & Integer.MAX_VALUE) % shards.length;
+    }
+
+    @NonNull
+    private EncryptedSharedPreferences getShard(@NonNull String key) {
+        return getShard(getShardIndex(key));
+    }
+
+    @NonNull
+    /* package */ EncryptedSharedPreferences getShard(int index) {
+        synchronized (shards) {
+            EncryptedSharedPreferences shard = shards[index];
+            if (shard == null) {
+                SharedPreferences base = context.getSharedPreferences(name + "_shard" + index,
+                        Context.MODE_PRIVATE);
+                shard = new EncryptedSharedPreferences(base, encryption.copy());
+                if (!listeners.isEmpty()) {
+                    shard.registerOnSharedPreferenceChangeListener(shardListener);
+                }
+                shards[index] = shard;
+            }
+            return shard;
+        }
+    }
+
+    @Override
+    public Map<String, ?> getAll() {
+        Map<String, Object> map = new HashMap<>();
+        if (shards.length == 1) {
+            map.putAll(getShard(0).getAll());
+            return map;
+        }
+
+        ExecutorService executor = CryptoExecutors.getDefault();
+        List<Future<Map<String, ?>>> futures = new ArrayList<>(shards.length);
+        for (int i = 0; i < shards.length; i++) {
+            final int index = i;
+            futures.add(executor.submit(new Callable<Map<String, ?>>() {
+                @Override
+                public Map<String, ?> call() throws Exception {
+                    return getShard(index).getAll();
+                }
+            }));
+        }
+
+        try {
+            for (Future<Map<String, ?>> future : futures) {
+                map.putAll(future.get());
+            }
+        } catch (InterruptedException e) {
+            for (Future<Map<String, ?>> future : futures) {
+                future.cancel(true);
+            }
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw encryption.new UnexpectedEncryptionStateException(e.getCause());
+        }
+        return map;
+    }
+
+    @Nullable
+    @Override
+    public String getString(@NonNull String key, @Nullable String defValue) {
+        return getShard(key).getString(key, defValue);
+    }
+
+    @Override
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    public Set<String> getStringSet(@NonNull String key, Set<String> defValues) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public int getInt(@NonNull String key, int defValue) {
+        return getShard(key).getInt(key, defValue);
+    }
+
+    @Override
+    public long getLong(@NonNull String key, long defValue) {
+        return getShard(key).getLong(key, defValue);
+    }
+
+    @Override
+    public float getFloat(@NonNull String key, float defValue) {
+        return getShard(key).getFloat(key, defValue);
+    }
+
+    @Override
+    public boolean getBoolean(@NonNull String key, boolean defValue) {
+        return getShard(key).getBoolean(key, defValue);
+    }
+
+    @Override
+    public boolean contains(@NonNull String key) {
+        return getShard(key).contains(key);
+    }
+
+    @Override
+    public ShardedEditor edit() {
+        return new ShardedEditor();
+    }
+
+    @Override
+    public void registerOnSharedPreferenceChangeListener(
+            @NonNull OnSharedPreferenceChangeListener listener) {
+        synchronized (shards) {
+            if (listeners.addIfAbsent(listener) && listeners.size() == 1) {
+                for (EncryptedSharedPreferences shard : shards) {
+                    if (shard != null) {
+                        shard.registerOnSharedPreferenceChangeListener(shardListener);
+                    }
+                }
+            }
+        }
+    }
+
+    @Override
+    public void unregisterOnSharedPreferenceChangeListener(
+            @NonNull OnSharedPreferenceChangeListener listener) {
+        synchronized (shards) {
+            if (listeners.remove(listener) && listeners.isEmpty()) {
+                for (EncryptedSharedPreferences shard : shards) {
+                    if (shard != null) {
+                        shard.unregisterOnSharedPreferenceChangeListener(shardListener);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * An {@link android.content.SharedPreferences.Editor} that edits only the shards of the keys
+     * put or removed.
+     */
+    public class ShardedEditor implements Editor {
+
+        private final EncryptedSharedPreferences.EncryptedEditor[] editors
+                = new EncryptedSharedPreferences.EncryptedEditor[shards.length];
+
+        private ShardedEditor() {
+        }
+
+        @SuppressLint("CommitPrefEdits")
+        @NonNull
+        private EncryptedSharedPreferences.EncryptedEditor getEditor(int index) {
+            if (editors[index] == null) {
+                editors[index] = getShard(index).edit();
+            }
+            return editors[index];
+        }
+
+        @NonNull
+        private EncryptedSharedPreferences.EncryptedEditor getEditor(@NonNull String key) {
+            return getEditor(getShardIndex(key));
+        }
+
+        @Override
+        public synchronized Editor putString(@NonNull String key, @Nullable String value) {
+            getEditor(key).putString(key, value);
+            return this;
+        }
+
+        /**
+         * Puts all the entries of {@code values} at once, with
+         * {@link EncryptedSharedPreferences.EncryptedEditor#putAll(java.util.Map)} for each shard.
+         */
+        public synchronized ShardedEditor putAll(@NonNull Map<String, ?> values) {
+            List<Map<String, Object>> groups = new ArrayList<>(shards.length);
+            for (int i = 0; i < shards.length; i++) {
+                groups.add(null);
+            }
+            for (Map.Entry<String, ?> entry : values.entrySet()) {
+                int index = getShardIndex(entry.getKey());
+                Map<String, Object> group = groups.get(index);
+                if (group == null) {
+                    group = new HashMap<>();
+                    groups.set(index, group);
+                }
+                group.put(entry.getKey(), entry.getValue());
+            }
+            for (int i = 0; i < shards.length; i++) {
+                if (groups.get(i) != null) {
+                    getEditor(i).putAll(groups.get(i));
+                }
+            }
+            return this;
+        }
+
+        @Override
+        @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+        public synchronized Editor putStringSet(String key, Set<String> values) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public synchronized Editor putInt(String key, int value) {
+            return putString(key, String.valueOf(value));
+        }
+
+        @Override
+        public synchronized Editor putLong(String key, long value) {
+            return putString(key, String.valueOf(value));
+        }
+
+        @Override
+        public synchronized Editor putFloat(String key, float value) {
+            return putString(key, String.valueOf(value));
+        }
+
+        @Override
+        public synchronized Editor putBoolean(String key, boolean value) {
+            return putString(key, String.valueOf(value));
+        }
+
+        @Override
+        public synchronized Editor remove(String key) {
+            getEditor(key).remove(key);
+            return this;
+        }
+
+        /**
+         * Clears all the shards, so it loads and rewrites every shard.
+         */
+        @Override
+        public synchronized Editor clear() {
+            for (int i = 0; i < shards.length; i++) {
+                getEditor(i).clear();
+            }
+            return this;
+        }
+
+        /**
+         * Commits the touched shards one by one. Each shard is committed atomically, but the
+         * whole commit is not: if it fails, some shards may have been written.
+         */
+        @Override
+        public synchronized boolean commit() {
+            boolean result = true;
+            for (int i = 0; i < editors.length; i++) {
+                if (editors[i] != null) {
+                    result &= editors[i].commit();
+                    editors[i] = null;
+                }
+            }
+            return result;
+        }
+
+        @Override
+        public synchronized void apply() {
+            for (int i = 0; i < editors.length; i++) {
+                if (editors[i] != null) {
+                    editors[i].apply();
+                    editors[i] = null;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,19 @@
+package com.github.gfx.util.encrypt;
+
+import android.support.annotation.NonNull;
+
+/**
+ * A transformation applied to plain texts before encryption and after decryption, e.g.
+ * compression. Implementations must be thread-safe.
+ *
+ * @see com.github.gfx.util.encrypt.Encryption#setValueCodec(ValueCodec)
+ * @see com.github.gfx.util.encrypt.DeflateValueCodec
+ */
+public interface ValueCodec {
+
+    @NonNull
+    byte[] encode(@NonNull byte[] plain);
+
+    @NonNull
+    byte[] decode(@NonNull byte[] encoded);
+}
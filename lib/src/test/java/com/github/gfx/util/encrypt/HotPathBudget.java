@@ -0,0 +1,139 @@
+package com.github.gfx.util.encrypt;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Properties;
+
+/**
+ * Measures bytes allocated per call and tail latency of an operation, and checks them against
+ * {@code hotpath-budgets.properties}. Allocations are counted by HotSpot's per-thread allocation
+ * counter, so they are stable across runs and always checked. Wall-clock latency depends on the
+ * machine, so it is only reported unless the {@code HOTPATH_CHECK_LATENCY} environment variable
+ * is {@code true}; then its budgets are multiplied by {@code HOTPATH_LATENCY_SCALE}, if set.
+ */
+class HotPathBudget {
+
+    private static final String BUDGETS = "/hotpath-budgets.properties";
+
+    private static final int WARMUP_ITERATIONS = 2000;
+
+    interface Operation {
+
+        void run() throws Exception;
+    }
+
+    static class Measurement {
+
+        final String name;
+
+        final long bytesPerCall;
+
+        final long p99Micros;
+
+        Measurement(String name, long bytesPerCall, long p99Micros) {
+            this.name = name;
+            this.bytesPerCall = bytesPerCall;
+            this.p99Micros = p99Micros;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%s.bytes=%d %s.p99.micros=%d",
+                    name, bytesPerCall, name, p99Micros);
+        }
+    }
+
+    private final Properties budgets = new Properties();
+
+    private final com.sun.management.ThreadMXBean threadMXBean;
+
+    private final boolean checkLatency;
+
+    private final double latencyScale;
+
+    HotPathBudget() throws IOException {
+        InputStream in = HotPathBudget.class.getResourceAsStream(BUDGETS);
+        if (in == null) {
+            throw new IOException(BUDGETS + " is not found");
+        }
+        try {
+            budgets.load(in);
+        } finally {
+            in.close();
+        }
+
+        threadMXBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        if (!threadMXBean.isThreadAllocatedMemorySupported()) {
+            throw new UnsupportedOperationException("Allocation counting is not supported by this JVM");
+        }
+        threadMXBean.setThreadAllocatedMemoryEnabled(true);
+
+        checkLatency = Boolean.parseBoolean(System.getenv("HOTPATH_CHECK_LATENCY"));
+        String scale = System.getenv("HOTPATH_LATENCY_SCALE");
+        latencyScale = scale != null ? Double.parseDouble(scale) : 1.0;
+    }
+
+    Measurement measure(String name, int iterations, Operation operation) throws Exception {
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            operation.run();
+        }
+
+        long threadId = Thread.currentThread().getId();
+        long[] nanos = new long[iterations];
+        long allocatedBefore = threadMXBean.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < iterations; i++) {
+            long start = System.nanoTime();
+            operation.run();
+            nanos[i] = System.nanoTime() - start;
+        }
+        long allocated = threadMXBean.getThreadAllocatedBytes(threadId) - allocatedBefore;
+
+        Arrays.sort(nanos);
+        long p99 = nanos[(int) Math.ceil(iterations * 0.99) - 1];
+        Measurement measurement = new Measurement(name, allocated / iterations, p99 / 1000);
+        System.out.println("[hotpath] " + measurement);
+        return measurement;
+    }
+
+    /**
+     * @throws AssertionError if the measurement exceeds its allocation budget, or its latency
+     *                        budget if latency is checked
+     */
+    void check(Measurement measurement) {
+        long bytesBudget = getBudget(measurement.name + ".bytes");
+        long p99Budget = (long) (getBudget(measurement.name + ".p99.micros") * latencyScale);
+
+        StringBuilder errors = new StringBuilder();
+        if (measurement.bytesPerCall > bytesBudget) {
+            errors.append(String.format(Locale.US, "%s allocates %d bytes per call; budget is %d. ",
+                    measurement.name, measurement.bytesPerCall, bytesBudget));
+        }
+        if (measurement.p99Micros > p99Budget) {
+            String message = String.format(Locale.US, "%s takes %dus at p99; budget is %dus. ",
+                    measurement.name, measurement.p99Micros, p99Budget);
+            if (checkLatency) {
+                errors.append(message);
+            } else {
+                System.out.println("[hotpath] warning: " + message);
+            }
+        }
+        if (errors.length() > 0) {
+            throw new AssertionError(errors + "Update " + BUDGETS + " only if the regression is intended.");
+        }
+    }
+
+    void measureAndCheck(String name, int iterations, Operation operation) throws Exception {
+        check(measure(name, iterations, operation));
+    }
+
+    private long getBudget(String key) {
+        String value = budgets.getProperty(key);
+        if (value == null) {
+            throw new IllegalArgumentException("No budget for " + key + " in " + BUDGETS);
+        }
+        return Long.parseLong(value.trim());
+    }
+}
@@ -0,0 +1,113 @@
+package com.github.gfx.util.encrypt;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.crypto.Cipher;
+
+/**
+ * Checks allocations and tail latency of the hot path against {@code hotpath-budgets.properties}.
+ */
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 21)
+public class HotPathTest {
+
+    private static final int ITERATIONS = 5000;
+
+    private static final int ENTRIES = 100;
+
+    private HotPathBudget budget;
+
+    private Encryption encryption;
+
+    private EncryptedSharedPreferences prefs;
+
+    private String value;
+
+    @Before
+    public void setUp() throws Exception {
+        budget = new HotPathBudget();
+
+        // AndroidOpenSSL is not available on the JVM
+        encryption = new Encryption(Cipher.getInstance("AES/CBC/PKCS5Padding"), "0123456789abcdef");
+
+        SharedPreferences base = RuntimeEnvironment.application
+                .getSharedPreferences("hotpath", Context.MODE_PRIVATE);
+        prefs = new EncryptedSharedPreferences(base, encryption);
+
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 64; i++) {
+            sb.append((char) ('a' + i % 26));
+        }
+        value = sb.toString();
+
+        Map<String, Object> values = new HashMap<>();
+        for (int i = 0; i < ENTRIES; i++) {
+            values.put("key" + i, value);
+        }
+        EncryptedSharedPreferences.EncryptedEditor editor = prefs.edit();
+        editor.clear();
+        editor.putAll(values).commit();
+    }
+
+    @Test
+    public void encrypt() throws Exception {
+        budget.measureAndCheck("encrypt", ITERATIONS, new HotPathBudget.Operation() {
+            @Override
+            public void run() throws Exception {
+                encryption.encrypt(value);
+            }
+        });
+    }
+
+    @Test
+    public void decrypt() throws Exception {
+        final String encrypted = encryption.encrypt(value);
+        budget.measureAndCheck("decrypt", ITERATIONS, new HotPathBudget.Operation() {
+            @Override
+            public void run() throws Exception {
+                encryption.decrypt(encrypted);
+            }
+        });
+    }
+
+    @Test
+    public void getString() throws Exception {
+        budget.measureAndCheck("getString", ITERATIONS, new HotPathBudget.Operation() {
+            @Override
+            public void run() throws Exception {
+                prefs.getString("key42", null);
+            }
+        });
+    }
+
+    @Test
+    public void getAll() throws Exception {
+        budget.measureAndCheck("getAll", ITERATIONS / 10, new HotPathBudget.Operation() {
+            @Override
+            public void run() throws Exception {
+                prefs.getAll();
+            }
+        });
+    }
+
+    @Test
+    public void commit() throws Exception {
+        budget.measureAndCheck("commit", ITERATIONS / 10, new HotPathBudget.Operation() {
+            @Override
+            public void run() throws Exception {
+                prefs.edit().putString("key42", value).commit();
+            }
+        });
+    }
+}
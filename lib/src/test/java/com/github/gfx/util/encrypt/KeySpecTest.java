@@ -0,0 +1,41 @@
+package com.github.gfx.util.encrypt;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.annotation.Config;
+
+import javax.crypto.Cipher;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * The JVM's default provider rejects keys whose algorithm is a whole transformation, e.g.
+ * "AES/CBC/PKCS5Padding", as some providers that {@link CipherSelector} may pick do.
+ */
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 21)
+public class KeySpecTest {
+
+    private void assertRoundTrip(String algorithmMode) throws Exception {
+        Encryption encryption = new Encryption(Cipher.getInstance(algorithmMode), "0123456789abcdef");
+        assertEquals("Hello, world!", encryption.decrypt(encryption.encrypt("Hello, world!")));
+    }
+
+    @Test
+    public void cbc() throws Exception {
+        assertRoundTrip("AES/CBC/PKCS5Padding");
+    }
+
+    @Test
+    public void gcm() throws Exception {
+        assertRoundTrip("AES/GCM/NoPadding");
+    }
+
+    @Test
+    public void byteArrayKey() throws Exception {
+        Encryption encryption = new Encryption(Cipher.getInstance("AES/CBC/PKCS5Padding"),
+                "0123456789abcdef".getBytes("UTF-8"));
+        assertEquals("Hello, world!", encryption.decrypt(encryption.encrypt("Hello, world!")));
+    }
+}